@@ -24,6 +24,7 @@ import org.json.JSONObject;
 import java.util.HashMap;
 
 import edu.wisc.chess.plugins.chesslocationmonitoring.controllers.GPSMonitoringController;
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.GeofenceStateDatabaseTableHelpers;
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.Helpers;
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.SettingsDatabaseTableHelpers;
 import edu.wisc.chess.plugins.chesslocationmonitoring.services.BackgroundService;
@@ -86,6 +87,9 @@ public class GPSMonitoringProxy extends CordovaPlugin {
 			SettingsDatabaseTableHelpers settings_helper = new SettingsDatabaseTableHelpers(context);
 			settings_helper.deleteSettings();
 
+			GeofenceStateDatabaseTableHelpers geofence_state_helper = new GeofenceStateDatabaseTableHelpers(context);
+			geofence_state_helper.deleteGeofenceStates();
+
 			PluginResult result = new PluginResult(PluginResult.Status.OK, true);
 			callback_context.sendPluginResult(result);
 
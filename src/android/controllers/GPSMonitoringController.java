@@ -30,23 +30,27 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import edu.wisc.chess.plugins.chesslocationmonitoring.Constants;
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.DistanceHelpers;
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.EventDatabaseTableHelpers;
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.GPSDatabaseTableHelpers;
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.GeofenceManager;
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.Helpers;
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.LocationBuffer;
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.NotificationHelpers;
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.ServiceStatusDatabaseTableHelpers;
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.SettingsDatabaseTableHelpers;
 import edu.wisc.chess.plugins.chesslocationmonitoring.models.EventDatabaseRowObject;
 import edu.wisc.chess.plugins.chesslocationmonitoring.models.GPSDatabaseRowObject;
-import edu.wisc.chess.plugins.chesslocationmonitoring.models.GPSPoint;
 import edu.wisc.chess.plugins.chesslocationmonitoring.models.Geofence;
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.GeofenceState;
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.GeofenceTransition;
 import edu.wisc.chess.plugins.chesslocationmonitoring.models.ServiceStatusDatabaseRowObject;
 import edu.wisc.chess.plugins.chesslocationmonitoring.services.APIService;
 import edu.wisc.chess.plugins.chesslocationmonitoring.services.LocationService;
+import edu.wisc.chess.plugins.chesslocationmonitoring.services.LocationUploadPipeline;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Response;
@@ -66,13 +70,6 @@ public class GPSMonitoringController {
 	 */
 	protected int GEOFENCE_ACTIVATED_NOTIFICATION_ID = 12587;
 
-	/**
-	 * API URL to use when saving the GPS coordinates
-	 *
-	 * @var String
-	 */
-	protected String GPS_COORDINATES_API_URL = "gps-coordinates/save-coordinates";
-
 	/**
 	 * Number of events to store before making an api request for geofence events
 	 *
@@ -95,18 +92,19 @@ public class GPSMonitoringController {
 	protected int NUM_EVENTS_PER_API_REQUEST = 30;
 
 	/**
-	 * Number of locations to store before making an api request
+	 * Indicates if events are being sent, shared by the process so controllers created for
+	 * different deliveries don't send the same undeleted events at once
 	 *
-	 * @var int
+	 * @var AtomicBoolean
 	 */
-	protected int NUM_LOCATIONS_BEFORE_API_REQUEST = 2;
+	protected static final AtomicBoolean is_sending_events = new AtomicBoolean(false);
 
 	/**
-	 * Number of locations to send per API request
+	 * Pipeline that uploads saved locations
 	 *
-	 * @var int
+	 * @var LocationUploadPipeline
 	 */
-	protected int NUM_LOCATIONS_PER_API_REQUEST = 30;
+	protected LocationUploadPipeline location_upload_pipeline;
 
 	/**
 	 * Number of meters that user has to move in order to get an update
@@ -144,19 +142,12 @@ public class GPSMonitoringController {
 	protected Context context = null;
 
 	/**
-	 * Manager for geofences
+	 * Manager for geofences (shared by the process, see GeofenceManager.getInstance)
 	 *
 	 * @var GeofenceManager
 	 */
 	protected GeofenceManager geofence_manager = null;
 
-	/**
-	 * Details for the geofence notification
-	 *
-	 * @var HashMap<String, String>
-	 */
-	protected HashMap<String, String> geofence_notification_details = null;
-
 	/**
 	 * Helpers for gps table to use
 	 *
@@ -172,11 +163,39 @@ public class GPSMonitoringController {
 	protected Date last_geofence_notification_update_date = null;
 
 	/**
-	 * Last known position
+	 * Indicates if there is a last known position
+	 *
+	 * @var boolean
+	 */
+	protected boolean has_last_position = false;
+
+	/**
+	 * Latitude of last known position
+	 *
+	 * @var double
+	 */
+	protected double last_latitude = 0;
+
+	/**
+	 * Longitude of last known position
+	 *
+	 * @var double
+	 */
+	protected double last_longitude = 0;
+
+	/**
+	 * Initial number of fixes kept in the location buffer (grows to fit larger batches)
+	 *
+	 * @var int
+	 */
+	protected int LOCATION_BUFFER_CAPACITY = 64;
+
+	/**
+	 * Recent fixes, kept as primitives from receipt until they are saved
 	 *
-	 * @var Location
+	 * @var LocationBuffer
 	 */
-	protected Location last_position = null;
+	protected LocationBuffer location_buffer = null;
 
 	/**
 	 * Location service
@@ -227,6 +246,13 @@ public class GPSMonitoringController {
 	 */
 	protected String permission_status = "";
 
+	/**
+	 * Format to upload locations in ("binary" to use the compact binary format, otherwise JSON)
+	 *
+	 * @var String
+	 */
+	protected String location_upload_format = "";
+
 	/**
 	 * Indicates if we should stop after our next location
 	 *
@@ -246,94 +272,18 @@ public class GPSMonitoringController {
 
 		SettingsDatabaseTableHelpers settings_helper = new SettingsDatabaseTableHelpers(context);
 		this.access_token = settings_helper.getSettingByKey("access_token");
+		this.location_upload_format = settings_helper.getSettingByKey("location_upload_format");
 
 		this.gps_database_helpers = new GPSDatabaseTableHelpers(context);
 		this.api_service = new APIService(context);
-		this.geofence_manager = new GeofenceManager();
+		this.location_upload_pipeline = LocationUploadPipeline.getInstance(context);
+		this.location_buffer = new LocationBuffer(this.LOCATION_BUFFER_CAPACITY);
 
 		if (initialize_location_service) {
 			this.initializeLocationService();
 		}
 	}
 
-	/**
-	 * Add polygon geofences from string
-	 *
-	 * @param json		String of geofences to parse and add
-	 *
-	 * @return void
-	 */
-	public void addGeofencesFromString(String json) {
-		if (json == null) {
-			return;
-		}
-
-		int i = 0;
-		int j = 0;
-
-		try {
-			JSONObject json_object = new JSONObject(json);
-			JSONObject notification_details = json_object.getJSONObject("notification");
-
-			if (this.geofence_notification_details == null) {
-				this.geofence_notification_details = new HashMap<String, String>();
-			}
-
-			String title = notification_details.getString("title");
-			this.geofence_notification_details.put("title", title);
-
-			String body = notification_details.getString("body");
-			this.geofence_notification_details.put("body", body);
-
-			JSONObject circular_geofences_object = json_object.getJSONObject("circular_geofences");
-			JSONObject polygon_geofences_object = json_object.getJSONObject("polygon_geofences");
-
-			Iterator<String> iterable = circular_geofences_object.keys();
-			while (iterable.hasNext()) {
-				String place_id = iterable.next();
-
-				JSONObject circular_geofence = circular_geofences_object.getJSONObject(place_id);
-				JSONObject center_object = circular_geofence.getJSONObject("center");
-
-				double latitude = center_object.getDouble("lat");
-				double longitude = center_object.getDouble("lon");
-				double radius = Double.parseDouble(circular_geofence.getString("radius"));
-
-				GPSPoint center = new GPSPoint(latitude, longitude);
-				this.geofence_manager.addCircularGeofence(place_id, center, radius);
-
-				i++;
-			}
-
-			iterable = polygon_geofences_object.keys();
-			while (iterable.hasNext()) {
-				String place_id = iterable.next();
-
-				JSONArray coordinates = polygon_geofences_object.getJSONArray(place_id);
-				GPSPoint[] points = new GPSPoint[coordinates.length()];
-
-				for (int k = 0; k < coordinates.length(); k++) {
-					JSONObject coordinate = coordinates.getJSONObject(k);
-
-					double latitude = coordinate.getDouble("lat");
-					double longitude = coordinate.getDouble("lon");
-
-					points[k] = new GPSPoint(latitude, longitude);
-				}
-
-				this.geofence_manager.addPolygonGeofence(place_id, points);
-
-				j++;
-			}
-
-		} catch (Exception error) {
-			// Do Nothing
-			error.printStackTrace();
-		}
-
-		Helpers.log("GPSMonitoringController.addGeofencesFromString: Num circular geofences = " + Double.toString(i) + ", Num polygon geofences = "  + Double.toString(j) + ", Total = " + Long.toString(this.geofence_manager.getGeofencesByState("").size()));
-	}
-
 	/**
 	 * Check whether location tracking is supported and enabled
 	 *
@@ -370,53 +320,63 @@ public class GPSMonitoringController {
 			public void onFailure(Call call, IOException error) {
 				// Something went wrong
 				error.printStackTrace();
+
+				handleSaveEventsFailed();
 			}
 
 			@Override
 			public void onResponse(Call call, Response response) throws IOException {
-				String response_string = response.body().string();
+				String response_string;
+
+				try {
+					response_string = response.body().string();
+
+				} catch (IOException error) {
+					handleSaveEventsFailed();
+					throw error;
+				}
+
 				Helpers.log("createSaveEventsToServerCallback: onResponse callback: HTTP Status: " + response.code());
 				Helpers.log("createSaveEventsToServerCallback: GPSMonitoringController.onResponse callback: Response Body: " + response_string);
 
-				if (response.isSuccessful()) {
-					try {
+				if (APIService.isRetryableStatus(response.code())) {
+					handleSaveEventsFailed();
+					return;
+				}
+
+				try {
+					if (response.isSuccessful()) {
+						api_service.recordSuccess();
+
 						JSONObject response_data = new JSONObject(response_string);
 						handleSaveEventsResponseData(response_data);
-					} catch (JSONException error) {
-						error.printStackTrace();
 					}
+
+				} catch (JSONException error) {
+					error.printStackTrace();
+
+				} finally {
+					is_sending_events.set(false);
 				}
 			}
 		});
 	}
 
 	/**
-	 * Create a callback after locations are saved to the server
+	 * Back off after events failed to send, and send them again once the backoff has passed.
+	 * The retry queries the events again rather than resending the failed request, so events
+	 * saved meanwhile are included and none are sent twice.
 	 *
-	 * @return Callback
+	 * @return void
 	 */
-	protected Callback createSaveLocationsToServerCallback() {
-		return (new Callback() {
-			@Override
-			public void onFailure(Call call, IOException error) {
-				// Something went wrong
-				error.printStackTrace();
-			}
+	protected void handleSaveEventsFailed() {
+		is_sending_events.set(false);
 
+		this.api_service.recordFailure();
+		APIService.scheduleRetry("events", new Runnable() {
 			@Override
-			public void onResponse(Call call, Response response) throws IOException {
-				String response_string = response.body().string();
-				Helpers.log("createSaveLocationsToServerCallback: onResponse callback: HTTP Status: " + response.code());
-				Helpers.log("createSaveLocationsToServerCallback: onResponse callback: Response Body: " + response_string);
-
-				if (response.isSuccessful()) {
-					try {
-						JSONObject response_data = new JSONObject(response_string);
-						handleSaveLocationsResponseData(response_data);
-					} catch (JSONException error) {
-						error.printStackTrace();
-					}
-				}
+			public void run() {
+				sendEventsToServer();
 			}
 		});
 	}
@@ -443,11 +403,11 @@ public class GPSMonitoringController {
 	 */
 	public JSONObject getLastPosition(CallbackContext callback) {
 		Helpers.log("GPSMonitoringController.getLastPosition: Started");
-		ArrayList<GPSDatabaseRowObject> results = this.gps_database_helpers.getLastNLocations(1);
+		GPSDatabaseRowObject last_location = this.gps_database_helpers.getLastLocation();
 
-		if (results.size() > 0) {
+		if (last_location != null) {
 			try {
-				return results.get(0).returnAsJSONObject();
+				return last_location.returnAsJSONObject();
 
 			} catch (JSONException error) {
 				error.printStackTrace();
@@ -490,26 +450,42 @@ public class GPSMonitoringController {
 			return;
 		}
 
-		Location last_position = location_result.getLastLocation();
 		ArrayList<Location> locations = (ArrayList<Location>)location_result.getLocations();
+		int count = locations.size();
 
-		Helpers.log("GPSMonitoringController.handleLocationResult: Handling " + locations.size() + " location(s)");
+		Helpers.log("GPSMonitoringController.handleLocationResult: Handling " + count + " location(s)");
 
-		int i = 0;
-		while (i < locations.size()) {
-			Location location = locations.get(i);
-			Helpers.log("GPSMonitoringController.handleLocationResult: Checking location: " + location.toString());
+		if (count == 0) {
+			return;
+		}
 
-			if (last_position.getLatitude() != location.getLatitude() && last_position.getLongitude() != location.getLongitude()) {
-				Helpers.log("GPSMonitoringController.handleLocationResult: Saving location: " + location.toString());
-				this.gps_database_helpers.insertLocation(this.context, this.access_token, location);
-			}
+		this.location_buffer.ensureCapacity(count);
+		for (int k = 0; k < count; k++) {
+			this.location_buffer.add(locations.get(k));
+		}
 
-			i = i + 1;
+		int offset = this.location_buffer.getCount() - count;
+		int last_index = this.location_buffer.getCount() - 1;
+
+		double last_latitude = this.location_buffer.getLatitude(last_index);
+		double last_longitude = this.location_buffer.getLongitude(last_index);
+
+		// Earlier locations in the batch are saved along with the last one, in one transaction
+		int[] saved_indexes = new int[count];
+		int num_saved_indexes = 0;
+
+		for (int k = offset; k < last_index; k++) {
+			if (last_latitude != this.location_buffer.getLatitude(k) && last_longitude != this.location_buffer.getLongitude(k)) {
+				Helpers.log("GPSMonitoringController.handleLocationResult: Saving location: " + this.location_buffer.getLatitude(k) + ", " + this.location_buffer.getLongitude(k));
+				saved_indexes[num_saved_indexes++] = k;
+			}
 		}
 
-		this.updatePosition(last_position);
-		this.updateGeofenceManagerWithLocation(last_position);
+		this.updatePosition(last_index, saved_indexes, num_saved_indexes);
+
+		// Evaluate geofences against every location in the batch so enters and exits between
+		// deliveries aren't lost
+		this.updateGeofenceManagerWithLocations(offset, count);
 
 		if (this.should_stop_after_next_location) {
 			//this.location_service.removeLocationUpdates(this.createLocationCallback());
@@ -528,8 +504,10 @@ public class GPSMonitoringController {
 			return;
 		}
 
-		this.updatePosition(location);
-		this.updateGeofenceManagerWithLocation(location);
+		int index = this.location_buffer.add(location);
+
+		this.updatePosition(index);
+		this.updateGeofenceManagerWithLocations(index, 1);
 
 		if (this.should_stop_after_next_location) {
 			// this.location_service.removeLocationUpdates(this.createLocationCallback());
@@ -554,22 +532,6 @@ public class GPSMonitoringController {
 		}
 	}
 
-	/**
-	 * Handle the response data from saving locations
-	 *
-	 * @param response_data			Data to handle
-	 *
-	 * @return void
-	 */
-	protected void handleSaveLocationsResponseData(JSONObject response_data) throws JSONException {
-		JSONArray ids_saved = response_data.getJSONArray("ids_saved");
-		this.gps_database_helpers.deleteLocationsById(ids_saved);
-
-		if (this.gps_database_helpers.getLocationCount() >= this.NUM_LOCATIONS_BEFORE_API_REQUEST) {
-			this.sendLocationsToServer();
-		}
-	}
-
 	/**
 	 * Check whether user has granted the app permissions
 	 *
@@ -733,6 +695,25 @@ public class GPSMonitoringController {
 	 * @return void
 	 */
 	protected void sendEventsToServer() {
+		// Backing off, or the circuit is open, so don't query or serialize the events yet
+		if (!this.api_service.isRequestAllowed()) {
+			Helpers.log("GPSMonitoringController.sendEventsToServer: Requests are backing off, waiting");
+			return;
+		}
+
+		// Events in flight or waiting to be retried aren't deleted yet, so they would be sent twice
+		if (APIService.isRetryPending("events") || !is_sending_events.compareAndSet(false, true)) {
+			Helpers.log("GPSMonitoringController.sendEventsToServer: Events are already being sent, waiting");
+			return;
+		}
+
+		// Another request may have started testing an open circuit since the check above
+		if (!this.api_service.tryStartRequest()) {
+			is_sending_events.set(false);
+			Helpers.log("GPSMonitoringController.sendEventsToServer: Requests are backing off, waiting");
+			return;
+		}
+
 		EventDatabaseTableHelpers helpers = new EventDatabaseTableHelpers(this.context);
 		ArrayList<EventDatabaseRowObject> database_events = helpers.getFirstNEvents(this.NUM_EVENTS_PER_API_REQUEST);
 		JSONArray events = new JSONArray();
@@ -759,6 +740,9 @@ public class GPSMonitoringController {
 
 		} catch (Exception error) {
 			error.printStackTrace();
+
+			// The request was started, so fail it to let another request test the circuit
+			this.handleSaveEventsFailed();
 		}
 	}
 
@@ -779,43 +763,7 @@ public class GPSMonitoringController {
 	 * @return void
 	 */
 	public void sendLocationsToServer(boolean force_send) {
-		if (!force_send && this.gps_database_helpers.getLocationCount() < this.NUM_LOCATIONS_BEFORE_API_REQUEST) {
-			return;
-		}
-
-		ArrayList<GPSDatabaseRowObject> database_locations = this.gps_database_helpers.getFirstNLocations(this.NUM_LOCATIONS_PER_API_REQUEST);
-
-		if (database_locations.size() == 0) {
-			return;
-		}
-
-		JSONArray locations = new JSONArray();
-
-		int i = 0;
-		while (i < database_locations.size()) {
-			try {
-				locations.put(database_locations.get(i).returnAsJSONObject());
-			} catch (JSONException error) {
-				// Do Nothing
-			}
-
-			i = i + 1;
-		}
-
-		try {
-			JSONObject data = new JSONObject();
-			data.put("coordinates", locations);
-
-			this.api_service.makeRequest(
-				"post",
-				this.GPS_COORDINATES_API_URL,
-				data,
-				this.createSaveLocationsToServerCallback()
-			);
-
-		} catch (Exception error) {
-			error.printStackTrace();
-		}
+		this.location_upload_pipeline.drain(this.api_service, this.location_upload_format, force_send);
 	}
 
 	/**
@@ -859,18 +807,21 @@ public class GPSMonitoringController {
 	 * @return void
 	 */
 	public void updateGeofenceManagerWithLocation(Location location) {
-		// Check if geofences have been added yet
-		if (this.geofence_manager.getGeofencesByState("").size() == 0) {
-			SettingsDatabaseTableHelpers settings_helper = new SettingsDatabaseTableHelpers(this.context);
-			String geofence_json_string = settings_helper.getSettingByKey("geofence_json_string");
+		int index = this.location_buffer.add(location);
+		this.updateGeofenceManagerWithLocations(index, 1);
+	}
 
-			try {
-				this.addGeofencesFromString(geofence_json_string);
-				this.geofence_manager.loadGeofenceStatesFromDatabase(this.context);
-			} catch (Exception error) {
-				error.printStackTrace();
-			}
-		}
+	/**
+	 * Update geofence manager with an ordered batch of locations from the location buffer
+	 *
+	 * @param offset		Index of the first location in the buffer
+	 * @param count			Number of locations to use
+	 *
+	 * @return void
+	 */
+	public void updateGeofenceManagerWithLocations(int offset, int count) {
+		// Geofences are only parsed when the process starts or the geofence settings change
+		this.geofence_manager = GeofenceManager.getInstance(this.context);
 
 		Date now = new Date();
 		double seconds_since_last_geofence_notification_update = 0;
@@ -880,53 +831,84 @@ public class GPSMonitoringController {
 
 		// Reset geofence states every 24 hours
 		if (seconds_since_last_geofence_notification_update > 24 * 3600) {
-			this.geofence_manager.resetGeofenceStates();
+			synchronized (this.geofence_manager) {
+				this.geofence_manager.resetGeofenceStates();
+			}
 		}
 
-		this.geofence_manager.updateGeofenceStates(location);
-		this.geofence_manager.saveGeofenceStatesToDatabase(this.context);
+		ArrayList<GeofenceTransition> transitions;
+		double num_activated_geofences;
+		double num_active_geofences;
+		double distance_to_nearest_geofence_boundary = 0;
+
+		synchronized (this.geofence_manager) {
+			transitions = this.geofence_manager.updateGeofenceStates(this.location_buffer, offset, count);
+			this.geofence_manager.saveGeofenceStatesToDatabase(this.context);
+
+			num_activated_geofences = this.geofence_manager.getNumGeofencesInState(GeofenceState.ACTIVATED);
+			num_active_geofences = this.geofence_manager.getNumGeofencesInState(GeofenceState.ACTIVE);
+
+			// Without geofences, locations keep being sampled as often as before
+			if (count > 0 && this.geofence_manager.getNumGeofences() > 0) {
+				int last_index = offset + count - 1;
+				distance_to_nearest_geofence_boundary = this.geofence_manager.getDistanceToNearestGeofenceBoundary(this.location_buffer.getLatitude(last_index), this.location_buffer.getLongitude(last_index));
+			}
+		}
+
+		LocationService.updateSamplingForDistance(this.context, distance_to_nearest_geofence_boundary);
 
 		NotificationHelpers notification_helpers = new NotificationHelpers(this.context);
 
-		HashMap<String, Geofence> activated_geofences = this.geofence_manager.getGeofencesByState("activated");
-		HashMap<String, Geofence> inactivated_geofences = this.geofence_manager.getGeofencesByState("inactivated");
+		StringBuilder activated_place_ids = new StringBuilder();
+		StringBuilder activated_times = new StringBuilder();
+		StringBuilder inactivated_place_ids = new StringBuilder();
+		StringBuilder inactivated_times = new StringBuilder();
 
-		double num_activated_geofences = activated_geofences.size();
-		double num_active_geofences = this.geofence_manager.getGeofencesByState("active").size();
-		double num_inactivated_geofences = inactivated_geofences.size();
+		double num_activated_transitions = 0;
+		double num_inactivated_transitions = 0;
 
-		Helpers.log("GPSMonitoringController.updateGeofenceManagerWithLocation:\nNum Activated Geofences = " + Double.toString(num_activated_geofences) + "\nNum Active Geofences = " + Double.toString(num_active_geofences) + "\nNum Inactivated Geofences = " + Double.toString(num_inactivated_geofences) + "\nLast activation (seconds) = " + Double.toString(seconds_since_last_geofence_notification_update));
+		for (GeofenceTransition transition : transitions) {
+			// Dwells are counted in the active geofences, but aren't reported as events
+			if (transition.getType().equals(GeofenceTransition.TYPE_DWELL)) {
+				continue;
+			}
 
-		EventDatabaseTableHelpers events_helpers = new EventDatabaseTableHelpers(this.context);
-		try {
-			if (num_activated_geofences > 0) {
-				String json_str = "";
-				for (String place_id : activated_geofences.keySet()) {
-					if (!json_str.equalsIgnoreCase("")) {
-						json_str = json_str.concat(",");
-					}
+			boolean is_enter = transition.getType().equals(GeofenceTransition.TYPE_ENTER);
+			StringBuilder place_ids = is_enter ? activated_place_ids : inactivated_place_ids;
+			StringBuilder transition_times = is_enter ? activated_times : inactivated_times;
 
-					json_str = json_str.concat(place_id);
-				}
+			if (place_ids.length() > 0) {
+				place_ids.append(",");
+				transition_times.append(",");
+			}
 
-				JSONObject json = new JSONObject();
-				json.put("activated_geofence_place_ids", json_str);
+			place_ids.append(transition.getPlaceId());
+			transition_times.append(transition.getTime());
 
-				events_helpers.insertEvent(this.access_token, "location tracking", "entering geofence", json);
+			if (is_enter) {
+				num_activated_transitions++;
+
+			} else {
+				num_inactivated_transitions++;
 			}
+		}
 
-			if (num_inactivated_geofences > 0) {
-				String json_str = "";
-				for (String place_id : inactivated_geofences.keySet()) {
-					if (!json_str.equalsIgnoreCase("")) {
-						json_str = json_str.concat(",");
-					}
+		Helpers.log("GPSMonitoringController.updateGeofenceManagerWithLocations:\nNum Locations = " + Integer.toString(count) + "\nNum Enter Transitions = " + Double.toString(num_activated_transitions) + "\nNum Exit Transitions = " + Double.toString(num_inactivated_transitions) + "\nNum Activated Geofences = " + Double.toString(num_activated_geofences) + "\nNum Active Geofences = " + Double.toString(num_active_geofences) + "\nLast activation (seconds) = " + Double.toString(seconds_since_last_geofence_notification_update));
 
-					json_str = json_str.concat(place_id);
-				}
+		EventDatabaseTableHelpers events_helpers = new EventDatabaseTableHelpers(this.context);
+		try {
+			if (num_activated_transitions > 0) {
+				JSONObject json = new JSONObject();
+				json.put("activated_geofence_place_ids", activated_place_ids.toString());
+				json.put("activated_geofence_times", activated_times.toString());
+
+				events_helpers.insertEvent(this.access_token, "location tracking", "entering geofence", json);
+			}
 
+			if (num_inactivated_transitions > 0) {
 				JSONObject json = new JSONObject();
-				json.put("inactivated_geofence_place_ids", json_str);
+				json.put("inactivated_geofence_place_ids", inactivated_place_ids.toString());
+				json.put("inactivated_geofence_times", inactivated_times.toString());
 
 				events_helpers.insertEvent(this.access_token, "location tracking", "exiting geofence", json);
 			}
@@ -936,18 +918,21 @@ public class GPSMonitoringController {
 		}
 
 		if (
-			num_activated_geofences > 0 &&
+			num_activated_transitions > 0 &&
+			(num_activated_geofences > 0 || num_active_geofences > 0) &&
 			(seconds_since_last_geofence_notification_update > 60 || this.last_geofence_notification_update_date == null) &&
 			!notification_helpers.isNotificationShowing(this.GEOFENCE_ACTIVATED_NOTIFICATION_ID)
 		) {
+			HashMap<String, String> notification_details = this.geofence_manager.getNotificationDetails();
+
 			String title = "";
-			if (this.geofence_notification_details.containsKey("title")) {
-				title = this.geofence_notification_details.get("title");
+			if (notification_details.containsKey("title")) {
+				title = notification_details.get("title");
 			}
 
 			String body = "";
-			if (this.geofence_notification_details.containsKey("body")) {
-				body = this.geofence_notification_details.get("body");
+			if (notification_details.containsKey("body")) {
+				body = notification_details.get("body");
 			}
 
 			try {
@@ -973,9 +958,17 @@ public class GPSMonitoringController {
 			this.last_geofence_notification_update_date = new Date();
 		}
 
-		if (events_helpers.getEventCount() >= this.NUM_GEOFENCE_EVENTS_BEFORE_API_REQUEST) {
+		// Entering or exiting a geofence is urgent, so it is sent right away along with the
+		// locations leading up to it, whatever the network or power state
+		boolean has_transitions = num_activated_transitions > 0 || num_inactivated_transitions > 0;
+
+		if (has_transitions || events_helpers.getEventCount() >= this.NUM_GEOFENCE_EVENTS_BEFORE_API_REQUEST) {
 			this.sendEventsToServer();
 		}
+
+		if (has_transitions) {
+			this.sendLocationsToServer(true);
+		}
 	}
 
 	/**
@@ -1004,69 +997,98 @@ public class GPSMonitoringController {
 	 * Update monitoring object position. Skips positions that are exactly the same.
 	 * @NOTE Caveat: This will save a new position even if they haven't moved if the user switches off their phone and turns it back on.
 	 *
-	 * @param position		Position to set
+	 * @param index		Index of the position in the location buffer
 	 *
 	 * @return void
 	 */
-	protected void updatePosition(Location position) {
-		if (position == null) {
-			return;
-		}
+	protected void updatePosition(int index) {
+		this.updatePosition(index, new int[1], 0);
+	}
+
+	/**
+	 * Update monitoring object position, saving earlier positions from the same batch with it
+	 *
+	 * @param index					Index of the position in the location buffer
+	 * @param saved_indexes			Indexes of earlier positions to save (needs room for one more)
+	 * @param num_saved_indexes		Number of earlier positions to save
+	 *
+	 * @return void
+	 */
+	protected void updatePosition(int index, int[] saved_indexes, int num_saved_indexes) {
+		double latitude = this.location_buffer.getLatitude(index);
+		double longitude = this.location_buffer.getLongitude(index);
 
 		float num_meters_between_locations = -1;
 
-		Helpers.log("GPSMonitoringController.updatePosition: Position" + position.toString());
-		ArrayList<GPSDatabaseRowObject> results = this.gps_database_helpers.getLastNLocations(1);
-		String last_location_time = this.gps_database_helpers.getLastLocationTime();
+		Helpers.log("GPSMonitoringController.updatePosition: Position " + latitude + ", " + longitude + " acc=" + this.location_buffer.getAccuracy(index));
+		// Both of these come from the table helpers' cache, so this doesn't read the database
+		GPSDatabaseRowObject last_saved_position = this.gps_database_helpers.getLastLocation();
+		long last_location_time = this.gps_database_helpers.getLastLocationTime();
+
+		if (num_saved_indexes > 0) {
+			// The earlier positions are saved first, so the last of them is the last saved position
+			int last_saved_index = saved_indexes[num_saved_indexes - 1];
 
-		if (results.size() > 0) {
-			GPSDatabaseRowObject last_saved_position = results.get(0);
+			this.has_last_position = true;
+			this.last_latitude = this.location_buffer.getLatitude(last_saved_index);
+			this.last_longitude = this.location_buffer.getLongitude(last_saved_index);
+			last_location_time = System.currentTimeMillis();
 
-			this.last_position = new Location("");
-			this.last_position.setLatitude(Double.parseDouble(last_saved_position.getLatitude()));
-			this.last_position.setLongitude(Double.parseDouble(last_saved_position.getLongitude()));
+			num_meters_between_locations = (float) DistanceHelpers.getEllipsoidalDistance(this.last_latitude, this.last_longitude, latitude, longitude);
 
-			num_meters_between_locations = Helpers.getDistanceBetweenTwoLocations(this.last_position, position);
+		} else if (last_saved_position != null) {
+			this.has_last_position = true;
+			this.last_latitude = last_saved_position.getLatitude();
+			this.last_longitude = last_saved_position.getLongitude();
+
+			num_meters_between_locations = (float) DistanceHelpers.getEllipsoidalDistance(this.last_latitude, this.last_longitude, latitude, longitude);
 		}
 
+		long next_inactive_send_time = last_location_time + (long) (this.NUM_SECONDS_BETWEEN_SERVER_SENDS_WHEN_INACTIVE * 1000);
+
 		Helpers.log("GPSMonitoringController.updatePosition: Number of meters between this location and last location - " + num_meters_between_locations);
 
-		if (this.last_position != null && num_meters_between_locations < this.NUM_METERS_BETWEEN_UPDATES) {
-			String last_location_information = this.last_position.toString();
-			if (last_location_time != null) {
-				last_location_information += " at " + last_location_time;
+		if (this.has_last_position && num_meters_between_locations < this.NUM_METERS_BETWEEN_UPDATES) {
+			this.gps_database_helpers.insertLocations(this.context, this.access_token, this.location_buffer, saved_indexes, num_saved_indexes);
+
+			String last_location_information = this.last_latitude + ", " + this.last_longitude;
+			if (last_location_time != 0) {
+				last_location_information += " at " + Helpers.formatUnixTime(last_location_time);
 			}
 
 			Helpers.log("GPSMonitoringController.updatePosition: Too close to original position, not saving");
 			Helpers.log("GPSMonitoringController.updatePosition: Number of locations - " + this.gps_database_helpers.getLocationCount() + " - Last location: " + last_location_information);
-			Helpers.log("GPSMonitoringController.updatePosition: Next send, if inactive - " + (Double.parseDouble(last_location_time) + this.NUM_SECONDS_BETWEEN_SERVER_SENDS_WHEN_INACTIVE));
+			Helpers.log("GPSMonitoringController.updatePosition: Next send, if inactive - " + Helpers.formatUnixTime(next_inactive_send_time));
 
 			// Try sending events to the server if it has been hour since the last location time
-			if (last_location_time != null && !last_location_time.equalsIgnoreCase("0") && Double.parseDouble(Helpers.getUnixTimeAsString()) > Double.parseDouble(last_location_time) + this.NUM_SECONDS_BETWEEN_SERVER_SENDS_WHEN_INACTIVE) {
-				Helpers.log("GPSMonitoringController.updatePosition: User inactive since " + last_location_time + ", sending data to server");
+			if (last_location_time != 0 && System.currentTimeMillis() > next_inactive_send_time) {
+				Helpers.log("GPSMonitoringController.updatePosition: User inactive since " + Helpers.formatUnixTime(last_location_time) + ", sending data to server");
 				this.sendLocationsToServer(true);
 			}
 
 			return;
 		}
 
-		this.last_position = position;
-		this.gps_database_helpers.insertLocation(this.context, this.access_token, position);
+		this.has_last_position = true;
+		this.last_latitude = latitude;
+		this.last_longitude = longitude;
+		saved_indexes[num_saved_indexes++] = index;
+		this.gps_database_helpers.insertLocations(this.context, this.access_token, this.location_buffer, saved_indexes, num_saved_indexes);
 
-		Helpers.log("GPSMonitoringController.updatePosition: Next send, if inactive - " + (Double.parseDouble(last_location_time) + this.NUM_SECONDS_BETWEEN_SERVER_SENDS_WHEN_INACTIVE));
+		Helpers.log("GPSMonitoringController.updatePosition: Next send, if inactive - " + Helpers.formatUnixTime(next_inactive_send_time));
 
 		// Try sending events to the server if it has been hour since the last location time
-		if (last_location_time != null && !last_location_time.equalsIgnoreCase("0") && Double.parseDouble(Helpers.getUnixTimeAsString()) > Double.parseDouble(last_location_time) + this.NUM_SECONDS_BETWEEN_SERVER_SENDS_WHEN_INACTIVE) {
-			Helpers.log("GPSMonitoringController.updatePosition: User inactive since " + last_location_time + ", sending data to server");
+		if (last_location_time != 0 && System.currentTimeMillis() > next_inactive_send_time) {
+			Helpers.log("GPSMonitoringController.updatePosition: User inactive since " + Helpers.formatUnixTime(last_location_time) + ", sending data to server");
 			this.sendLocationsToServer(true);
 
 		} else {
 			this.sendLocationsToServer();
 		}
 
-		String last_location_information = this.last_position.toString();
-		if (last_location_time != null) {
-			last_location_information += " at " + last_location_time;
+		String last_location_information = this.last_latitude + ", " + this.last_longitude;
+		if (last_location_time != 0) {
+			last_location_information += " at " + Helpers.formatUnixTime(last_location_time);
 		}
 
 		Helpers.log("GPSMonitoringController.updatePosition: Number of locations - " + this.gps_database_helpers.getLocationCount() + " - Last location: " + last_location_information);
@@ -6,8 +6,18 @@
 package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.GPSDatabaseRowObject;
 
 public class DatabaseHelpers extends SQLiteOpenHelper {
 	/**
@@ -22,7 +32,14 @@ public class DatabaseHelpers extends SQLiteOpenHelper {
 	 *
 	 * @var int
 	 */
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 4;
+
+	/**
+	 * Database table for access tokens, which rows refer to by id instead of repeating the token
+	 *
+	 * @var String
+	 */
+	public final String ACCESS_TOKENS_DATABASE_TABLE = "access_tokens";
 
 	/**
 	 * Database table for events
@@ -31,6 +48,13 @@ public class DatabaseHelpers extends SQLiteOpenHelper {
 	 */
 	public final String EVENTS_DATABASE_TABLE = "events";
 
+	/**
+	 * Database table for the state of each geofence
+	 *
+	 * @var String
+	 */
+	public final String GEOFENCE_STATES_DATABASE_TABLE = "geofence_states";
+
 	/**
 	 * Database table for gps coordinates
 	 *
@@ -52,6 +76,48 @@ public class DatabaseHelpers extends SQLiteOpenHelper {
 	 */
 	public final String SERVICE_STATUS_DATABASE_TABLE = "service_status";
 
+	/**
+	 * Number of ids deleted per statement (SQLite allows 999 parameters by default)
+	 *
+	 * @var int
+	 */
+	public static final int DELETE_CHUNK_SIZE = 500;
+
+	/**
+	 * Number of rows copied at a time when migrating a table
+	 *
+	 * @var int
+	 */
+	protected static final int MIGRATION_BATCH_SIZE = 500;
+
+	/**
+	 * Instance shared by every table helper in the process
+	 *
+	 * @var DatabaseHelpers
+	 */
+	protected static DatabaseHelpers instance = null;
+
+	/**
+	 * Compiled statements by their SQL
+	 *
+	 * @var HashMap<String, SQLiteStatement>
+	 */
+	protected final HashMap<String, SQLiteStatement> statements = new HashMap<>();
+
+	/**
+	 * Ids of access tokens by their token
+	 *
+	 * @var HashMap<String, Long>
+	 */
+	protected final HashMap<String, Long> access_token_ids = new HashMap<>();
+
+	/**
+	 * Access tokens by their id
+	 *
+	 * @var HashMap<Long, String>
+	 */
+	protected final HashMap<Long, String> access_tokens = new HashMap<>();
+
 	/**
 	 * Constructor
 	 *
@@ -59,8 +125,197 @@ public class DatabaseHelpers extends SQLiteOpenHelper {
 	 *
 	 * @return void
 	 */
-	public DatabaseHelpers(Context context) {
+	protected DatabaseHelpers(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+		// Lets reads carry on while a fix or an upload acknowledgement is being written
+		this.setWriteAheadLoggingEnabled(true);
+	}
+
+	/**
+	 * Return the instance shared by the process. The database it opens is left open for the
+	 * life of the process, so table helpers should not close it.
+	 *
+	 * @param context		Context to operate in
+	 *
+	 * @return DatabaseHelpers
+	 */
+	public static synchronized DatabaseHelpers getInstance(Context context) {
+		if (instance == null) {
+			instance = new DatabaseHelpers(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Bind an id to a statement, or null if the id is 0
+	 *
+	 * @param statement		Statement to bind to
+	 * @param index			Index of parameter (starting at 1)
+	 * @param id			Id to bind
+	 *
+	 * @return void
+	 */
+	public static void bindIdOrNull(SQLiteStatement statement, int index, long id) {
+		if (id == 0) {
+			statement.bindNull(index);
+
+		} else {
+			statement.bindLong(index, id);
+		}
+	}
+
+	/**
+	 * Bind a string that may be null to a statement (bindString does not accept null)
+	 *
+	 * @param statement		Statement to bind to
+	 * @param index			Index of parameter (starting at 1)
+	 * @param value			Value to bind
+	 *
+	 * @return void
+	 */
+	public static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+		if (value == null) {
+			statement.bindNull(index);
+
+		} else {
+			statement.bindString(index, value);
+		}
+	}
+
+	/**
+	 * Return an access token by its id
+	 *
+	 * @param access_token_id		Id of access token (0 for none)
+	 *
+	 * @return String				Access token, or null if there is none
+	 */
+	public String getAccessToken(long access_token_id) {
+		if (access_token_id == 0) {
+			return null;
+		}
+
+		synchronized (this.access_token_ids) {
+			if (this.access_tokens.containsKey(access_token_id)) {
+				return this.access_tokens.get(access_token_id);
+			}
+
+			String access_token = null;
+			String query = "SELECT access_token FROM " + this.ACCESS_TOKENS_DATABASE_TABLE + " WHERE id = ?";
+
+			try {
+				Cursor cursor = this.getReadableDatabase().rawQuery(query, new String[] { Long.toString(access_token_id) });
+				if (cursor.moveToFirst()) {
+					access_token = cursor.getString(0);
+				}
+
+				cursor.close();
+
+			} catch (Exception error) {
+				error.printStackTrace();
+				return null;
+			}
+
+			this.access_tokens.put(access_token_id, access_token);
+			if (access_token != null) {
+				this.access_token_ids.put(access_token, access_token_id);
+			}
+
+			return access_token;
+		}
+	}
+
+	/**
+	 * Return the id of an access token, adding the token if it hasn't been saved before
+	 *
+	 * @param access_token		Access token (may be null)
+	 *
+	 * @return long				Id of access token, or 0 if the token is null
+	 */
+	public long getAccessTokenId(String access_token) {
+		if (access_token == null) {
+			return 0;
+		}
+
+		synchronized (this.access_token_ids) {
+			Long access_token_id = this.access_token_ids.get(access_token);
+			if (access_token_id != null) {
+				return access_token_id;
+			}
+
+			access_token_id = this.insertAccessToken(this.getWritableDatabase(), access_token);
+			if (access_token_id != 0) {
+				this.access_token_ids.put(access_token, access_token_id);
+				this.access_tokens.put(access_token_id, access_token);
+			}
+
+			return access_token_id;
+		}
+	}
+
+	/**
+	 * Return an access token by its id, using the instance shared by the process. This lets rows
+	 * read from the database resolve their access token only when it is needed.
+	 *
+	 * @param access_token_id		Id of access token (0 for none)
+	 *
+	 * @return String				Access token, or null if there is none
+	 */
+	public static String resolveAccessToken(long access_token_id) {
+		DatabaseHelpers database_helpers;
+
+		synchronized (DatabaseHelpers.class) {
+			database_helpers = instance;
+		}
+
+		if (database_helpers == null) {
+			return null;
+		}
+
+		return database_helpers.getAccessToken(access_token_id);
+	}
+
+	/**
+	 * Return a list of parameter placeholders for an IN clause (i.e. "?, ?, ?")
+	 *
+	 * @param count			Number of placeholders
+	 *
+	 * @return String
+	 */
+	public static String getPlaceholders(int count) {
+		StringBuilder placeholders = new StringBuilder(count * 3);
+
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				placeholders.append(", ");
+			}
+
+			placeholders.append("?");
+		}
+
+		return placeholders.toString();
+	}
+
+	/**
+	 * Return a compiled statement for the SQL, compiling it the first time it is used. The
+	 * statement is shared, so synchronize on it while binding and executing it.
+	 *
+	 * @param sql		SQL to compile
+	 *
+	 * @return SQLiteStatement
+	 */
+	public SQLiteStatement getStatement(String sql) {
+		synchronized (this.statements) {
+			SQLiteStatement statement = this.statements.get(sql);
+
+			if (statement == null) {
+				statement = this.getWritableDatabase().compileStatement(sql);
+				this.statements.put(sql, statement);
+			}
+
+			return statement;
+		}
 	}
 
 	/**
@@ -73,17 +328,13 @@ public class DatabaseHelpers extends SQLiteOpenHelper {
 	@Override
 	public void onCreate(SQLiteDatabase database) {
 		try {
-			database.execSQL(""
-				+ "CREATE TABLE IF NOT EXISTS "
-				+ 		this.GPS_COORDINATES_DATABASE_TABLE
-				+ "("
-				+ "		id CHAR(200) PRIMARY KEY NOT NULL, "
-				+ "		access_token CHAR(200), "
-				+ "		latitude CHAR(50) NOT NULL, "
-				+ "		longitude CHAR(50) NOT NULL, "
-				+ "		other_data TEXT, "
-				+ "		create_date CHAR(200) NOT NULL"
-				+ ")");
+			this.createAccessTokensTable(database);
+		} catch (Exception error) {
+			error.printStackTrace();
+		}
+
+		try {
+			this.createGPSCoordinatesTable(database, this.GPS_COORDINATES_DATABASE_TABLE);
 		} catch (Exception error) {
 			error.printStackTrace();
 		}
@@ -114,25 +365,386 @@ public class DatabaseHelpers extends SQLiteOpenHelper {
 		}
 
 		try {
-			database.execSQL(""
-				+ "CREATE TABLE IF NOT EXISTS "
-				+ 		this.EVENTS_DATABASE_TABLE
-				+ "("
-				+ "		id CHAR(200) PRIMARY KEY NOT NULL, "
-				+ "		access_token CHAR(200) NOT NULL, "
-				+ "		service TEXT NOT NULL, "
-				+ "		action TEXT NOT NULL, "
-				+ "		objects TEXT, "
-				+ "		create_date CHAR(200) NOT NULL "
-				+ ")");
+			this.createEventsTable(database, this.EVENTS_DATABASE_TABLE);
+		} catch (Exception error) {
+			error.printStackTrace();
+		}
+
+		try {
+			this.createGeofenceStatesTable(database);
+		} catch (Exception error) {
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Create the access tokens table
+	 *
+	 * @param database		Database to create table in
+	 *
+	 * @return void
+	 */
+	protected void createAccessTokensTable(SQLiteDatabase database) {
+		database.execSQL(""
+			+ "CREATE TABLE IF NOT EXISTS "
+			+ 		this.ACCESS_TOKENS_DATABASE_TABLE
+			+ "("
+			+ "		id INTEGER PRIMARY KEY NOT NULL, "
+			+ "		access_token TEXT NOT NULL UNIQUE "
+			+ ")");
+	}
+
+	/**
+	 * Create an events table
+	 *
+	 * @param database		Database to create table in
+	 * @param table			Name of table
+	 *
+	 * @return void
+	 */
+	protected void createEventsTable(SQLiteDatabase database, String table) {
+		database.execSQL(""
+			+ "CREATE TABLE IF NOT EXISTS "
+			+ 		table
+			+ "("
+			+ "		id CHAR(200) PRIMARY KEY NOT NULL, "
+			+ "		access_token_id INTEGER, "
+			+ "		service TEXT NOT NULL, "
+			+ "		action TEXT NOT NULL, "
+			+ "		objects TEXT, "
+			+ "		create_date CHAR(200) NOT NULL "
+			+ ")");
+	}
+
+	/**
+	 * Create the geofence states table
+	 *
+	 * @param database		Database to create table in
+	 *
+	 * @return void
+	 */
+	protected void createGeofenceStatesTable(SQLiteDatabase database) {
+		database.execSQL(""
+			+ "CREATE TABLE IF NOT EXISTS "
+			+ 		this.GEOFENCE_STATES_DATABASE_TABLE
+			+ "("
+			+ "		place_id TEXT PRIMARY KEY NOT NULL, "
+			+ "		state TEXT NOT NULL "
+			+ ")");
+	}
+
+	/**
+	 * Create a GPS coordinates table. The id is the create date in milliseconds since epoch, so
+	 * it is also the rowid and the table is stored in create date order.
+	 *
+	 * @param database		Database to create table in
+	 * @param table			Name of table
+	 *
+	 * @return void
+	 */
+	protected void createGPSCoordinatesTable(SQLiteDatabase database, String table) {
+		database.execSQL(""
+			+ "CREATE TABLE IF NOT EXISTS "
+			+ 		table
+			+ "("
+			+ "		id INTEGER PRIMARY KEY NOT NULL, "
+			+ "		access_token_id INTEGER, "
+			+ "		latitude REAL NOT NULL, "
+			+ "		longitude REAL NOT NULL, "
+			+ "		horizontal_accuracy REAL NOT NULL DEFAULT 0, "
+			+ "		speed REAL NOT NULL DEFAULT 0, "
+			+ "		power_flags INTEGER NOT NULL DEFAULT 0"
+			+ ")");
+	}
+
+	/**
+	 * Add an access token to the access tokens table if it isn't there, and return its id
+	 *
+	 * @param database			Database to use
+	 * @param access_token		Access token (may be null)
+	 *
+	 * @return long				Id of access token, or 0 if the token is null or couldn't be saved
+	 */
+	protected long insertAccessToken(SQLiteDatabase database, String access_token) {
+		if (access_token == null) {
+			return 0;
+		}
+
+		long access_token_id = 0;
+
+		try {
+			database.execSQL("INSERT OR IGNORE INTO " + this.ACCESS_TOKENS_DATABASE_TABLE + " (access_token) VALUES (?)", new Object[] { access_token });
+
+			Cursor cursor = database.rawQuery("SELECT id FROM " + this.ACCESS_TOKENS_DATABASE_TABLE + " WHERE access_token = ?", new String[] { access_token });
+			if (cursor.moveToFirst()) {
+				access_token_id = cursor.getLong(0);
+			}
+
+			cursor.close();
+
 		} catch (Exception error) {
 			error.printStackTrace();
 		}
+
+		return access_token_id;
+	}
+
+	/**
+	 * Migrate the GPS coordinates table from version 1, which stored everything as strings and
+	 * kept accuracy, speed and power state in a JSON blob. Rows are copied in batches into a new
+	 * table, which then replaces the old one.
+	 *
+	 * @param database		Database to migrate
+	 *
+	 * @return void
+	 */
+	protected void migrateGPSCoordinatesFromVersion1(SQLiteDatabase database) {
+		String new_table = this.GPS_COORDINATES_DATABASE_TABLE + "_v2";
+
+		database.execSQL("DROP TABLE IF EXISTS " + new_table);
+		this.createGPSCoordinatesTable(database, new_table);
+
+		String select_query = ""
+			+ " SELECT rowid, id, access_token, latitude, longitude, other_data "
+			+ " FROM "
+			+		this.GPS_COORDINATES_DATABASE_TABLE
+			+ " WHERE rowid > ? "
+			+ " ORDER BY rowid ASC "
+			+ " LIMIT " + Integer.toString(MIGRATION_BATCH_SIZE);
+
+		String insert_query = ""
+			+ "INSERT OR IGNORE INTO "
+			+ 	new_table
+			+ "		(id, access_token_id, latitude, longitude, horizontal_accuracy, speed, power_flags) "
+			+ " VALUES "
+			+ "		(?, ?, ?, ?, ?, ?, ?) ";
+
+		HashMap<String, Long> access_token_ids = new HashMap<>();
+		SQLiteStatement statement = database.compileStatement(insert_query);
+		long last_rowid = 0;
+		long num_migrated = 0;
+
+		while (true) {
+			Cursor cursor = database.rawQuery(select_query, new String[] { Long.toString(last_rowid) });
+			int num_rows = 0;
+
+			while (cursor.moveToNext()) {
+				num_rows++;
+				last_rowid = cursor.getLong(0);
+
+				try {
+					double horizontal_accuracy = 0;
+					double speed = 0;
+					int power_flags = 0;
+
+					String other_data = cursor.getString(5);
+					if (other_data != null && !other_data.isEmpty()) {
+						JSONObject other_data_object = new JSONObject(other_data);
+
+						horizontal_accuracy = other_data_object.optDouble("hacc", 0);
+						speed = other_data_object.optDouble("spd", 0);
+						power_flags = GPSDatabaseRowObject.setPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_DEVICE_IDLE_MODE, other_data_object.optInt("idim", -1));
+						power_flags = GPSDatabaseRowObject.setPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_INTERACTIVE, other_data_object.optInt("ii", -1));
+						power_flags = GPSDatabaseRowObject.setPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_POWER_SAVE_MODE, other_data_object.optInt("ipsm", -1));
+						power_flags = GPSDatabaseRowObject.setPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_IGNORING_BATTERY_OPTIMIZATIONS, other_data_object.optInt("iibo", -1));
+						power_flags = GPSDatabaseRowObject.setPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_CHARGING, other_data_object.optInt("ic", -1));
+					}
+
+					String access_token = cursor.getString(2);
+					Long access_token_id = access_token_ids.get(access_token);
+					if (access_token_id == null) {
+						access_token_id = this.insertAccessToken(database, access_token);
+						access_token_ids.put(access_token, access_token_id);
+					}
+
+					statement.bindLong(1, Helpers.parseUnixTimeAsMilliseconds(cursor.getString(1)));
+					bindIdOrNull(statement, 2, access_token_id);
+					statement.bindDouble(3, Double.parseDouble(cursor.getString(3)));
+					statement.bindDouble(4, Double.parseDouble(cursor.getString(4)));
+					statement.bindDouble(5, horizontal_accuracy);
+					statement.bindDouble(6, speed);
+					statement.bindLong(7, power_flags);
+					statement.executeInsert();
+					statement.clearBindings();
+
+					num_migrated++;
+
+				} catch (JSONException | NumberFormatException | NullPointerException error) {
+					// Skip rows that can't be read rather than losing the rest of the table. Database
+					// errors aren't caught, so they roll back the whole upgrade.
+					statement.clearBindings();
+					error.printStackTrace();
+				}
+			}
+
+			cursor.close();
+
+			if (num_rows < MIGRATION_BATCH_SIZE) {
+				break;
+			}
+		}
+
+		statement.close();
+
+		database.execSQL("DROP TABLE " + this.GPS_COORDINATES_DATABASE_TABLE);
+		database.execSQL("ALTER TABLE " + new_table + " RENAME TO " + this.GPS_COORDINATES_DATABASE_TABLE);
+
+		Helpers.log("DatabaseHelpers.migrateGPSCoordinatesFromVersion1: Migrated " + num_migrated + " locations");
+	}
+
+	/**
+	 * Migrate the GPS coordinates table from version 2, which stored the access token on every
+	 * row. The tokens are added to the access tokens table and the rows are copied into a new
+	 * table that refers to them by id, which then replaces the old one.
+	 *
+	 * @param database		Database to migrate
+	 *
+	 * @return void
+	 */
+	protected void migrateGPSCoordinatesFromVersion2(SQLiteDatabase database) {
+		String new_table = this.GPS_COORDINATES_DATABASE_TABLE + "_v3";
+
+		database.execSQL("DROP TABLE IF EXISTS " + new_table);
+		this.createGPSCoordinatesTable(database, new_table);
+
+		database.execSQL(""
+			+ "INSERT OR IGNORE INTO "
+			+ 	this.ACCESS_TOKENS_DATABASE_TABLE
+			+ "		(access_token) "
+			+ " SELECT DISTINCT access_token "
+			+ " FROM "
+			+		this.GPS_COORDINATES_DATABASE_TABLE
+			+ " WHERE access_token IS NOT NULL");
+
+		database.execSQL(""
+			+ "INSERT INTO "
+			+ 	new_table
+			+ "		(id, access_token_id, latitude, longitude, horizontal_accuracy, speed, power_flags) "
+			+ " SELECT coordinates.id, access_tokens.id, coordinates.latitude, coordinates.longitude, coordinates.horizontal_accuracy, coordinates.speed, coordinates.power_flags "
+			+ " FROM "
+			+		this.GPS_COORDINATES_DATABASE_TABLE + " AS coordinates "
+			+ " LEFT JOIN "
+			+		this.ACCESS_TOKENS_DATABASE_TABLE + " AS access_tokens "
+			+ "		ON access_tokens.access_token = coordinates.access_token");
+
+		database.execSQL("DROP TABLE " + this.GPS_COORDINATES_DATABASE_TABLE);
+		database.execSQL("ALTER TABLE " + new_table + " RENAME TO " + this.GPS_COORDINATES_DATABASE_TABLE);
+
+		Helpers.log("DatabaseHelpers.migrateGPSCoordinatesFromVersion2: Migrated locations");
+	}
+
+	/**
+	 * Migrate the events table from version 2 (or 1, which is the same), which stored the access
+	 * token on every row. The tokens are added to the access tokens table and the rows are copied
+	 * into a new table that refers to them by id, which then replaces the old one.
+	 *
+	 * @param database		Database to migrate
+	 *
+	 * @return void
+	 */
+	protected void migrateEventsFromVersion2(SQLiteDatabase database) {
+		String new_table = this.EVENTS_DATABASE_TABLE + "_v3";
+
+		database.execSQL("DROP TABLE IF EXISTS " + new_table);
+		this.createEventsTable(database, new_table);
+
+		database.execSQL(""
+			+ "INSERT OR IGNORE INTO "
+			+ 	this.ACCESS_TOKENS_DATABASE_TABLE
+			+ "		(access_token) "
+			+ " SELECT DISTINCT access_token "
+			+ " FROM "
+			+		this.EVENTS_DATABASE_TABLE
+			+ " WHERE access_token IS NOT NULL");
+
+		// Copied in rowid order, which is the order the events were saved in
+		database.execSQL(""
+			+ "INSERT INTO "
+			+ 	new_table
+			+ "		(id, access_token_id, service, action, objects, create_date) "
+			+ " SELECT events.id, access_tokens.id, events.service, events.action, events.objects, events.create_date "
+			+ " FROM "
+			+		this.EVENTS_DATABASE_TABLE + " AS events "
+			+ " LEFT JOIN "
+			+		this.ACCESS_TOKENS_DATABASE_TABLE + " AS access_tokens "
+			+ "		ON access_tokens.access_token = events.access_token "
+			+ " ORDER BY events.rowid ASC");
+
+		database.execSQL("DROP TABLE " + this.EVENTS_DATABASE_TABLE);
+		database.execSQL("ALTER TABLE " + new_table + " RENAME TO " + this.EVENTS_DATABASE_TABLE);
+
+		Helpers.log("DatabaseHelpers.migrateEventsFromVersion2: Migrated events");
+	}
+
+	/**
+	 * Move geofence states from version 3, which kept them all in one JSON setting
+	 * (geofence_states_string), into the geofence states table
+	 *
+	 * @param database		Database to migrate
+	 *
+	 * @return void
+	 */
+	protected void migrateGeofenceStatesFromVersion3(SQLiteDatabase database) {
+		String select_query = "SELECT value FROM " + this.SETTINGS_DATABASE_TABLE + " WHERE key = ?";
+		String[] args = new String[] { "geofence_states_string" };
+
+		String geofence_states_string = null;
+		Cursor cursor = database.rawQuery(select_query, args);
+		if (cursor.moveToFirst()) {
+			geofence_states_string = cursor.getString(0);
+		}
+
+		cursor.close();
+
+		if (geofence_states_string == null || geofence_states_string.isEmpty()) {
+			return;
+		}
+
+		String insert_query = ""
+			+ "INSERT OR REPLACE INTO "
+			+ 	this.GEOFENCE_STATES_DATABASE_TABLE
+			+ "		(place_id, state) "
+			+ " VALUES "
+			+ "		(?, ?) ";
+
+		SQLiteStatement statement = database.compileStatement(insert_query);
+		int num_migrated = 0;
+
+		try {
+			JSONObject geofence_states = new JSONObject(geofence_states_string);
+
+			Iterator<String> iterable = geofence_states.keys();
+			while (iterable.hasNext()) {
+				String place_id = iterable.next();
+
+				statement.bindString(1, place_id);
+				statement.bindString(2, geofence_states.optString(place_id, ""));
+				statement.executeInsert();
+				statement.clearBindings();
+
+				num_migrated++;
+			}
+
+		} catch (JSONException error) {
+			error.printStackTrace();
+		}
+
+		statement.close();
+
+		database.execSQL("DELETE FROM " + this.SETTINGS_DATABASE_TABLE + " WHERE key = ?", args);
+
+		Helpers.log("DatabaseHelpers.migrateGeofenceStatesFromVersion3: Migrated " + num_migrated + " geofence states");
 	}
 
 	/**
 	 * Handle when upgrading database
 	 *
+	 * @NOTE
+	 * 		Migration errors aren't caught. SQLiteOpenHelper runs the upgrade in a transaction, so
+	 * 		an error rolls the whole upgrade back and leaves the old version, and the upgrade is
+	 * 		tried again the next time the database is opened. Catching them would mark the
+	 * 		database upgraded with tables still in the old layout.
+	 *
 	 * @param database				Database to create
 	 * @param old_version			Old version
 	 * @param new_version			New version
@@ -141,8 +753,24 @@ public class DatabaseHelpers extends SQLiteOpenHelper {
 	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase database, int old_version, int new_version) {
-		if (new_version == 1) {
-			this.onCreate(database);
+		if (old_version < 3) {
+			this.createAccessTokensTable(database);
+		}
+
+		if (old_version < 2) {
+			this.migrateGPSCoordinatesFromVersion1(database);
+
+		} else if (old_version < 3) {
+			this.migrateGPSCoordinatesFromVersion2(database);
+		}
+
+		if (old_version < 3) {
+			this.migrateEventsFromVersion2(database);
+		}
+
+		if (old_version < 4) {
+			this.createGeofenceStatesTable(database);
+			this.migrateGeofenceStatesFromVersion3(database);
 		}
 
 		this.onCreate(database);
@@ -0,0 +1,169 @@
+/**
+ * Distance helper functions
+ *
+ * These only use java.lang.Math so they can be used (and tested) without android.location.
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
+
+public class DistanceHelpers {
+	/**
+	 * Mean radius of the earth (in meters)
+	 *
+	 * @var double
+	 */
+	public static final double EARTH_MEAN_RADIUS_METERS = 6371008.8;
+
+	/**
+	 * WGS84 semi-major axis (in meters)
+	 *
+	 * @var double
+	 */
+	protected static final double WGS84_SEMI_MAJOR_AXIS = 6378137.0;
+
+	/**
+	 * WGS84 semi-minor axis (in meters)
+	 *
+	 * @var double
+	 */
+	protected static final double WGS84_SEMI_MINOR_AXIS = 6356752.3142;
+
+	/**
+	 * Maximum number of iterations when computing the ellipsoidal distance
+	 *
+	 * @var int
+	 */
+	protected static final int MAX_ITERATIONS = 20;
+
+	/**
+	 * Return the distance between two points (in meters) on the WGS84 ellipsoid. This is the same
+	 * iterative solution Location.distanceBetween uses, without the bearings.
+	 *
+	 * @param latitude_1		Latitude of first point
+	 * @param longitude_1		Longitude of first point
+	 * @param latitude_2		Latitude of second point
+	 * @param longitude_2		Longitude of second point
+	 *
+	 * @return double
+	 */
+	public static double getEllipsoidalDistance(double latitude_1, double longitude_1, double latitude_2, double longitude_2) {
+		double a = WGS84_SEMI_MAJOR_AXIS;
+		double b = WGS84_SEMI_MINOR_AXIS;
+		double f = (a - b) / a;
+		double a_sq_minus_b_sq_over_b_sq = (a * a - b * b) / (b * b);
+
+		double lat_1 = Math.toRadians(latitude_1);
+		double lat_2 = Math.toRadians(latitude_2);
+		double l = Math.toRadians(longitude_2) - Math.toRadians(longitude_1);
+
+		double u_1 = Math.atan((1.0 - f) * Math.tan(lat_1));
+		double u_2 = Math.atan((1.0 - f) * Math.tan(lat_2));
+
+		double cos_u_1 = Math.cos(u_1);
+		double cos_u_2 = Math.cos(u_2);
+		double sin_u_1 = Math.sin(u_1);
+		double sin_u_2 = Math.sin(u_2);
+		double cos_u_1_cos_u_2 = cos_u_1 * cos_u_2;
+		double sin_u_1_sin_u_2 = sin_u_1 * sin_u_2;
+
+		double big_a = 0.0;
+		double sigma = 0.0;
+		double delta_sigma = 0.0;
+		double lambda = l;
+
+		for (int i = 0; i < MAX_ITERATIONS; i++) {
+			double lambda_original = lambda;
+			double cos_lambda = Math.cos(lambda);
+			double sin_lambda = Math.sin(lambda);
+
+			double t_1 = cos_u_2 * sin_lambda;
+			double t_2 = cos_u_1 * sin_u_2 - sin_u_1 * cos_u_2 * cos_lambda;
+			double sin_sigma = Math.sqrt(t_1 * t_1 + t_2 * t_2);
+			double cos_sigma = sin_u_1_sin_u_2 + cos_u_1_cos_u_2 * cos_lambda;
+			sigma = Math.atan2(sin_sigma, cos_sigma);
+
+			double sin_alpha = (sin_sigma == 0) ? 0.0 : cos_u_1_cos_u_2 * sin_lambda / sin_sigma;
+			double cos_sq_alpha = 1.0 - sin_alpha * sin_alpha;
+			double cos_2_sm = (cos_sq_alpha == 0) ? 0.0 : cos_sigma - 2.0 * sin_u_1_sin_u_2 / cos_sq_alpha;
+
+			double u_squared = cos_sq_alpha * a_sq_minus_b_sq_over_b_sq;
+			big_a = 1 + (u_squared / 16384.0) * (4096.0 + u_squared * (-768 + u_squared * (320.0 - 175.0 * u_squared)));
+			double big_b = (u_squared / 1024.0) * (256.0 + u_squared * (-128.0 + u_squared * (74.0 - 47.0 * u_squared)));
+			double c = (f / 16.0) * cos_sq_alpha * (4.0 + f * (4.0 - 3.0 * cos_sq_alpha));
+			double cos_2_sm_sq = cos_2_sm * cos_2_sm;
+
+			delta_sigma = big_b * sin_sigma * (cos_2_sm + (big_b / 4.0) * (cos_sigma * (-1.0 + 2.0 * cos_2_sm_sq) - (big_b / 6.0) * cos_2_sm * (-3.0 + 4.0 * sin_sigma * sin_sigma) * (-3.0 + 4.0 * cos_2_sm_sq)));
+			lambda = l + (1.0 - c) * f * sin_alpha * (sigma + c * sin_sigma * (cos_2_sm + c * cos_sigma * (-1.0 + 2.0 * cos_2_sm * cos_2_sm)));
+
+			if (lambda == 0 || Math.abs((lambda - lambda_original) / lambda) < 1.0e-12) {
+				break;
+			}
+		}
+
+		return b * big_a * (sigma - delta_sigma);
+	}
+
+	/**
+	 * Return an equirectangular approximation of the distance between two points (in meters).
+	 * Accurate to well under a percent for points a few kilometers apart.
+	 *
+	 * @param latitude_1		Latitude of first point
+	 * @param longitude_1		Longitude of first point
+	 * @param latitude_2		Latitude of second point
+	 * @param longitude_2		Longitude of second point
+	 * @param cos_latitude		Cosine of the latitude the points are near (usually precomputed)
+	 *
+	 * @return double
+	 */
+	public static double getEquirectangularDistance(double latitude_1, double longitude_1, double latitude_2, double longitude_2, double cos_latitude) {
+		double delta_longitude = longitude_2 - longitude_1;
+		if (delta_longitude > 180) {
+			delta_longitude -= 360;
+
+		} else if (delta_longitude < -180) {
+			delta_longitude += 360;
+		}
+
+		double x = Math.toRadians(delta_longitude) * cos_latitude;
+		double y = Math.toRadians(latitude_2 - latitude_1);
+
+		return Math.sqrt(x * x + y * y) * EARTH_MEAN_RADIUS_METERS;
+	}
+
+	/**
+	 * Return an equirectangular approximation of the distance (in meters) from a point to the
+	 * closest point of a segment. Longitudes must already be unwrapped so the segment doesn't
+	 * cross the 180 degree meridian relative to the point.
+	 *
+	 * @param latitude			Latitude of point
+	 * @param longitude			Longitude of point
+	 * @param latitude_a		Latitude of one end of the segment
+	 * @param longitude_a		Longitude of one end of the segment
+	 * @param latitude_b		Latitude of the other end of the segment
+	 * @param longitude_b		Longitude of the other end of the segment
+	 * @param cos_latitude		Cosine of the latitude the points are near (usually the point's)
+	 *
+	 * @return double
+	 */
+	public static double getEquirectangularDistanceToSegment(double latitude, double longitude, double latitude_a, double longitude_a, double latitude_b, double longitude_b, double cos_latitude) {
+		// Work in a plane with the point at the origin, in radians of arc
+		double ax = Math.toRadians(longitude_a - longitude) * cos_latitude;
+		double ay = Math.toRadians(latitude_a - latitude);
+		double bx = Math.toRadians(longitude_b - longitude) * cos_latitude;
+		double by = Math.toRadians(latitude_b - latitude);
+
+		double dx = bx - ax;
+		double dy = by - ay;
+		double length_sq = dx * dx + dy * dy;
+
+		// Position of the closest point along the segment (0 = a, 1 = b)
+		double t = (length_sq > 0) ? -(ax * dx + ay * dy) / length_sq : 0;
+		t = Math.max(0, Math.min(1, t));
+
+		double x = ax + t * dx;
+		double y = ay + t * dy;
+
+		return Math.sqrt(x * x + y * y) * EARTH_MEAN_RADIUS_METERS;
+	}
+}
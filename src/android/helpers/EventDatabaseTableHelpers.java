@@ -8,6 +8,7 @@ package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -33,7 +34,7 @@ public class EventDatabaseTableHelpers {
 	 * @return void
 	 */
 	public EventDatabaseTableHelpers(Context context) {
-		this.database_helpers = new DatabaseHelpers(context);
+		this.database_helpers = DatabaseHelpers.getInstance(context);
 	}
 
 	/**
@@ -44,16 +45,12 @@ public class EventDatabaseTableHelpers {
 	 * @return void
 	 */
 	public void deleteEventsById(JSONArray ids) throws JSONException {
-		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
-
-		StringBuilder clause = new StringBuilder();
 		ArrayList<String> args = new ArrayList<>();
 
 		int i = 0;
 		while (i < ids.length()) {
 			String id = Double.toString(Double.parseDouble(ids.get(i).toString()));
 			args.add(id);
-			clause.append(" OR id = ? ");
 			i = i + 1;
 		}
 
@@ -61,14 +58,28 @@ public class EventDatabaseTableHelpers {
 			return;
 		}
 
-		String query = ""
-			+ "DELETE FROM "
-			+ 	this.database_helpers.EVENTS_DATABASE_TABLE
-			+ " WHERE 0 = 1 " + clause.toString();
+		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
 
 		try {
-			database.execSQL(query, args.toArray());
-			database.close();
+			database.beginTransactionNonExclusive();
+
+			try {
+				for (int start = 0; start < args.size(); start += DatabaseHelpers.DELETE_CHUNK_SIZE) {
+					int chunk_size = Math.min(DatabaseHelpers.DELETE_CHUNK_SIZE, args.size() - start);
+
+					String query = ""
+						+ "DELETE FROM "
+						+ 	this.database_helpers.EVENTS_DATABASE_TABLE
+						+ " WHERE id IN (" + DatabaseHelpers.getPlaceholders(chunk_size) + ")";
+
+					database.execSQL(query, args.subList(start, start + chunk_size).toArray());
+				}
+
+				database.setTransactionSuccessful();
+
+			} finally {
+				database.endTransaction();
+			}
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -76,7 +87,10 @@ public class EventDatabaseTableHelpers {
 	}
 
 	/**
-	 * Return the specified number of events ordered by create date
+	 * Return the specified number of events ordered by create date (newest first)
+	 *
+	 * @NOTE Events are only ever appended, so rowid order is create date order. Ordering by
+	 * 		rowid walks the table's b-tree instead of sorting every row on the create_date string.
 	 *
 	 * @param n			Number to return
 	 *
@@ -90,7 +104,7 @@ public class EventDatabaseTableHelpers {
 			+ " SELECT * "
 			+ " FROM "
 			+		this.database_helpers.EVENTS_DATABASE_TABLE
-			+ " ORDER BY create_date DESC "
+			+ " ORDER BY rowid DESC "
 			+ " LIMIT " + Integer.toString(n);
 
 		try {
@@ -99,7 +113,6 @@ public class EventDatabaseTableHelpers {
 				results.add(new EventDatabaseRowObject(cursor));
 			}
 			cursor.close();
-			database.close();
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -124,7 +137,6 @@ public class EventDatabaseTableHelpers {
 			cursor.moveToFirst();
 			count = cursor.getLong(0);
 			cursor.close();
-			database.close();
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -154,38 +166,42 @@ public class EventDatabaseTableHelpers {
 			objects_string = "";
 		}
 
-		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
-
 		String unix_time_string = Helpers.getUnixTimeAsString();
 		Helpers.log("New event time: " + unix_time_string);
 
+		long access_token_id = this.database_helpers.getAccessTokenId(access_token);
+
 		String query1 = ""
 			+ " DELETE FROM "
 			+	this.database_helpers.EVENTS_DATABASE_TABLE
 			+ " WHERE id = ?";
 
-		String[] args1 = new String[] { unix_time_string };
-
 		String query2 = ""
 			+ "INSERT INTO "
 			+ 	this.database_helpers.EVENTS_DATABASE_TABLE
-			+ "		(id, access_token, service, action, objects, create_date) "
+			+ "		(id, access_token_id, service, action, objects, create_date) "
 			+ " VALUES "
 			+ "		(?, ?, ?, ?, ?, ?) ";
 
-		String[] args2 = new String[] {
-			unix_time_string,
-			access_token,
-			service,
-			action,
-			objects_string,
-			unix_time_string
-		};
-
 		try {
-			database.execSQL(query1, args1);
-			database.execSQL(query2, args2);
-			database.close();
+			SQLiteStatement statement1 = this.database_helpers.getStatement(query1);
+			synchronized (statement1) {
+				statement1.bindString(1, unix_time_string);
+				statement1.executeUpdateDelete();
+				statement1.clearBindings();
+			}
+
+			SQLiteStatement statement2 = this.database_helpers.getStatement(query2);
+			synchronized (statement2) {
+				statement2.bindString(1, unix_time_string);
+				DatabaseHelpers.bindIdOrNull(statement2, 2, access_token_id);
+				DatabaseHelpers.bindStringOrNull(statement2, 3, service);
+				DatabaseHelpers.bindStringOrNull(statement2, 4, action);
+				statement2.bindString(5, objects_string);
+				statement2.bindString(6, unix_time_string);
+				statement2.executeInsert();
+				statement2.clearBindings();
+			}
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -8,7 +8,7 @@ package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.location.Location;
+import android.database.sqlite.SQLiteStatement;
 import android.os.BatteryManager;
 import android.os.Build;
 import android.os.PowerManager;
@@ -18,8 +18,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import edu.wisc.chess.plugins.chesslocationmonitoring.models.GPSDatabaseRowObject;
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.LocationUploadBatch;
 
 public class GPSDatabaseTableHelpers {
 	/**
@@ -29,6 +31,41 @@ public class GPSDatabaseTableHelpers {
 	 */
 	DatabaseHelpers database_helpers = null;
 
+	/**
+	 * Lock for the cached table values, which are shared by every instance in the process
+	 *
+	 * @var Object
+	 */
+	protected static final Object cache_lock = new Object();
+
+	/**
+	 * Indicates if the cached table values have been loaded from the database
+	 *
+	 * @var boolean
+	 */
+	protected static boolean is_cache_loaded = false;
+
+	/**
+	 * Most recently saved location (null if the table is empty)
+	 *
+	 * @var GPSDatabaseRowObject
+	 */
+	protected static GPSDatabaseRowObject cached_last_location = null;
+
+	/**
+	 * Number of locations in the table
+	 *
+	 * @var long
+	 */
+	protected static long cached_location_count = 0;
+
+	/**
+	 * Identifier of the last location inserted, even if it has since been deleted
+	 *
+	 * @var long
+	 */
+	protected static long last_location_id = 0;
+
 	/**
 	 * Constructor for the database
 	 *
@@ -37,45 +74,147 @@ public class GPSDatabaseTableHelpers {
 	 * @return void
 	 */
 	public GPSDatabaseTableHelpers(Context context) {
-		this.database_helpers = new DatabaseHelpers(context);
+		this.database_helpers = DatabaseHelpers.getInstance(context);
+		this.loadCache();
 	}
 
 	/**
 	 * Delete locations by their id
 	 *
+	 * @NOTE Locations are sent oldest first, so an acknowledgement normally covers every location
+	 * 		up to the newest id in it. A single range delete is used only when every location up to
+	 * 		the newest id is one of the acknowledged ids. Otherwise the ids are deleted in chunks in
+	 * 		one transaction.
+	 *
 	 * @param ids		List of ids to delete
 	 *
 	 * @return void
 	 */
 	public void deleteLocationsById(JSONArray ids) throws JSONException {
-		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
-
-		StringBuilder clause = new StringBuilder();
-		ArrayList<String> args = new ArrayList<>();
+		long[] args = new long[ids.length()];
+		int num_args = 0;
 
 		int i = 0;
 		while (i < ids.length()) {
-			String id = ids.get(i).toString();
-			args.add(id);
-			clause.append(" OR id = ? ");
+			try {
+				args[num_args] = Helpers.parseUnixTimeAsMilliseconds(ids.get(i).toString());
+				num_args++;
+
+			} catch (NumberFormatException error) {
+				error.printStackTrace();
+			}
+
 			i = i + 1;
 		}
 
-		if (args.size() == 0) {
+		if (num_args == 0) {
 			return;
 		}
 
+		// Sort and remove duplicates so the counts can be compared with the number of ids
+		Arrays.sort(args, 0, num_args);
+
+		int num_unique_args = 1;
+		for (int j = 1; j < num_args; j++) {
+			if (args[j] != args[num_unique_args - 1]) {
+				args[num_unique_args++] = args[j];
+			}
+		}
+
+		long watermark = args[num_unique_args - 1];
+		if (this.getLocationCountUpTo(watermark) == num_unique_args && this.getLocationCountById(args, num_unique_args) == num_unique_args) {
+			this.deleteLocationsUpTo(watermark);
+			return;
+		}
+
+		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
+		boolean is_last_location_deleted = false;
+		int num_deleted = 0;
+
+		try {
+			database.beginTransactionNonExclusive();
+
+			try {
+				for (int start = 0; start < num_unique_args; start += DatabaseHelpers.DELETE_CHUNK_SIZE) {
+					int chunk_size = Math.min(DatabaseHelpers.DELETE_CHUNK_SIZE, num_unique_args - start);
+
+					String query = ""
+						+ "DELETE FROM "
+						+ 	this.database_helpers.GPS_COORDINATES_DATABASE_TABLE
+						+ " WHERE id IN (" + DatabaseHelpers.getPlaceholders(chunk_size) + ")";
+
+					SQLiteStatement statement = (chunk_size == DatabaseHelpers.DELETE_CHUNK_SIZE) ? this.database_helpers.getStatement(query) : database.compileStatement(query);
+					synchronized (statement) {
+						for (int j = 0; j < chunk_size; j++) {
+							statement.bindLong(j + 1, args[start + j]);
+						}
+
+						num_deleted += statement.executeUpdateDelete();
+						statement.clearBindings();
+					}
+
+					if (chunk_size != DatabaseHelpers.DELETE_CHUNK_SIZE) {
+						statement.close();
+					}
+				}
+
+				database.setTransactionSuccessful();
+
+			} finally {
+				database.endTransaction();
+			}
+
+			synchronized (cache_lock) {
+				is_last_location_deleted = cached_last_location != null && Arrays.binarySearch(args, 0, num_unique_args, cached_last_location.getId()) >= 0;
+			}
+
+			this.updateCacheAfterDelete(num_deleted, is_last_location_deleted);
+
+		} catch (Exception error) {
+			error.printStackTrace();
+
+			synchronized (cache_lock) {
+				is_cache_loaded = false;
+			}
+		}
+	}
+
+	/**
+	 * Delete every location up to and including an id
+	 *
+	 * @param watermark		Identifier of the newest location to delete
+	 *
+	 * @return void
+	 */
+	public void deleteLocationsUpTo(long watermark) {
 		String query = ""
 			+ "DELETE FROM "
 			+ 	this.database_helpers.GPS_COORDINATES_DATABASE_TABLE
-			+ " WHERE 0 = 1 " + clause.toString();
+			+ " WHERE id <= ?";
 
 		try {
-			database.execSQL(query, args.toArray());
-			database.close();
+			SQLiteStatement statement = this.database_helpers.getStatement(query);
+			int num_deleted;
+
+			synchronized (statement) {
+				statement.bindLong(1, watermark);
+				num_deleted = statement.executeUpdateDelete();
+				statement.clearBindings();
+			}
+
+			boolean is_last_location_deleted;
+			synchronized (cache_lock) {
+				is_last_location_deleted = cached_last_location != null && cached_last_location.getId() <= watermark;
+			}
+
+			this.updateCacheAfterDelete(num_deleted, is_last_location_deleted);
 
 		} catch (Exception error) {
 			error.printStackTrace();
+
+			synchronized (cache_lock) {
+				is_cache_loaded = false;
+			}
 		}
 	}
 
@@ -87,6 +226,21 @@ public class GPSDatabaseTableHelpers {
 	 * @return void
 	 */
 	public ArrayList<GPSDatabaseRowObject> getFirstNLocations(int n) {
+		return this.getFirstNLocationsAfterId(0, n);
+	}
+
+	/**
+	 * Return the specified number of locations saved after a location, ordered by create date
+	 *
+	 * @NOTE The id is the rowid and is the create date, so this is a range scan of the table's
+	 * 		b-tree that starts at the given id rather than a sort.
+	 *
+	 * @param after_id		Identifier to start after (0 to start at the oldest location)
+	 * @param n				Number to return
+	 *
+	 * @return void
+	 */
+	public ArrayList<GPSDatabaseRowObject> getFirstNLocationsAfterId(long after_id, int n) {
 		SQLiteDatabase database = this.database_helpers.getReadableDatabase();
 
 		ArrayList<GPSDatabaseRowObject> results = new ArrayList<>();
@@ -94,16 +248,18 @@ public class GPSDatabaseTableHelpers {
 			+ " SELECT * "
 			+ " FROM "
 			+		this.database_helpers.GPS_COORDINATES_DATABASE_TABLE
-			+ " ORDER BY create_date ASC "
+			+ " WHERE id > ? "
+			+ " ORDER BY id ASC "
 			+ " LIMIT " + Integer.toString(n);
 
+		String[] args = new String[] { Long.toString(after_id) };
+
 		try {
-			Cursor cursor = database.rawQuery(query, null);
+			Cursor cursor = database.rawQuery(query, args);
 			while (cursor.moveToNext()) {
 				results.add(new GPSDatabaseRowObject(cursor));
 			}
 			cursor.close();
-			database.close();
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -112,6 +268,113 @@ public class GPSDatabaseTableHelpers {
 		return results;
 	}
 
+	/**
+	 * Claim the next range of locations to upload as one batch
+	 *
+	 * @NOTE The range starts at the oldest location after after_id and stops before the first
+	 * 		location saved with a different access token, so every location in it shares the
+	 * 		batch's access token. Only ids are read; the locations are read when the batch is sent.
+	 *
+	 * @param after_id		Identifier to start after (0 to start at the oldest location)
+	 * @param before_id		Identifier to stop before (0 to not stop at an id)
+	 * @param n				Maximum number of locations in the batch
+	 *
+	 * @return LocationUploadBatch		Batch, or null if there are no locations after the id
+	 */
+	public LocationUploadBatch getNextUploadBatch(long after_id, long before_id, int n) {
+		SQLiteDatabase database = this.database_helpers.getReadableDatabase();
+		String table = this.database_helpers.GPS_COORDINATES_DATABASE_TABLE;
+		String[] after_args = new String[] { Long.toString(after_id) };
+
+		try {
+			long access_token_id;
+			Cursor cursor = database.rawQuery("SELECT access_token_id FROM " + table + " WHERE id > ? ORDER BY id ASC LIMIT 1", after_args);
+
+			try {
+				if (!cursor.moveToFirst()) {
+					return null;
+				}
+
+				access_token_id = (cursor.isNull(0)) ? 0 : cursor.getLong(0);
+
+			} finally {
+				cursor.close();
+			}
+
+			String boundary_query = ""
+				+ " SELECT id "
+				+ " FROM "
+				+		table
+				+ " WHERE id > ? AND access_token_id " + ((access_token_id == 0) ? "IS NOT NULL" : "IS NOT " + Long.toString(access_token_id))
+				+ " ORDER BY id ASC "
+				+ " LIMIT 1";
+
+			long boundary_id = before_id;
+
+			cursor = database.rawQuery(boundary_query, after_args);
+			try {
+				if (cursor.moveToFirst() && (boundary_id == 0 || cursor.getLong(0) < boundary_id)) {
+					boundary_id = cursor.getLong(0);
+				}
+
+			} finally {
+				cursor.close();
+			}
+
+			String boundary_condition = (boundary_id == 0) ? "" : " AND id < " + Long.toString(boundary_id);
+
+			String range_query = ""
+				+ " SELECT COUNT(*), MAX(id) "
+				+ " FROM ("
+				+ "		SELECT id "
+				+ "		FROM "
+				+			table
+				+ "		WHERE id > ?" + boundary_condition
+				+ "		ORDER BY id ASC "
+				+ "		LIMIT " + Integer.toString(n)
+				+ " )";
+
+			cursor = database.rawQuery(range_query, after_args);
+			try {
+				if (!cursor.moveToFirst() || cursor.getInt(0) == 0) {
+					return null;
+				}
+
+				return new LocationUploadBatch(after_id, cursor.getLong(1), this.database_helpers.getAccessToken(access_token_id), cursor.getInt(0));
+
+			} finally {
+				cursor.close();
+			}
+
+		} catch (Exception error) {
+			error.printStackTrace();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Return a cursor over the locations in an upload batch. The caller must close the cursor.
+	 *
+	 * @param batch		Batch to return the locations of
+	 *
+	 * @return Cursor
+	 */
+	public Cursor queryLocationsForUpload(LocationUploadBatch batch) {
+		SQLiteDatabase database = this.database_helpers.getReadableDatabase();
+
+		String query = ""
+			+ " SELECT id, latitude, longitude, horizontal_accuracy, speed, power_flags "
+			+ " FROM "
+			+		this.database_helpers.GPS_COORDINATES_DATABASE_TABLE
+			+ " WHERE id > ? AND id <= ? "
+			+ " ORDER BY id ASC";
+
+		String[] args = new String[] { Long.toString(batch.getAfterId()), Long.toString(batch.getLastId()) };
+
+		return database.rawQuery(query, args);
+	}
+
 	/**
 	 * Return the specified number of locations ordered by create date
 	 *
@@ -127,7 +390,7 @@ public class GPSDatabaseTableHelpers {
 			+ " SELECT * "
 			+ " FROM "
 			+		this.database_helpers.GPS_COORDINATES_DATABASE_TABLE
-			+ " ORDER BY create_date DESC "
+			+ " ORDER BY id DESC "
 			+ " LIMIT " + Integer.toString(n);
 
 		try {
@@ -136,7 +399,6 @@ public class GPSDatabaseTableHelpers {
 				results.add(new GPSDatabaseRowObject(cursor));
 			}
 			cursor.close();
-			database.close();
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -146,39 +408,199 @@ public class GPSDatabaseTableHelpers {
 	}
 
 	/**
-	 * Return last location time
+	 * Return the most recently saved location from the cache
 	 *
-	 * @return String
+	 * @return GPSDatabaseRowObject		Last location, or null if there are no locations
 	 */
-	public String getLastLocationTime() {
-		SQLiteDatabase database = this.database_helpers.getReadableDatabase();
+	public GPSDatabaseRowObject getLastLocation() {
+		synchronized (cache_lock) {
+			this.loadCache();
+			return cached_last_location;
+		}
+	}
 
-		String last_location_time = "0";
-		String query = "SELECT create_date FROM " + this.database_helpers.GPS_COORDINATES_DATABASE_TABLE + " ORDER BY create_date DESC LIMIT 1";
+	/**
+	 * Return last location time from the cache
+	 *
+	 * @return long		Milliseconds since epoch, or 0 if there are no locations
+	 */
+	public long getLastLocationTime() {
+		synchronized (cache_lock) {
+			this.loadCache();
+			return (cached_last_location == null) ? 0 : cached_last_location.getCreateDate();
+		}
+	}
+
+	/**
+	 * Update the cache after locations have been deleted
+	 *
+	 * @param num_deleted					Number of locations deleted
+	 * @param is_last_location_deleted		Indicates if the last location was one of them
+	 *
+	 * @return void
+	 */
+	protected void updateCacheAfterDelete(int num_deleted, boolean is_last_location_deleted) {
+		synchronized (cache_lock) {
+			if (!is_cache_loaded) {
+				return;
+			}
+
+			cached_location_count = Math.max(cached_location_count - num_deleted, 0);
+
+			// Locations are sent oldest first, so the last location is normally only deleted when the table is emptied
+			if (cached_location_count == 0) {
+				cached_last_location = null;
+
+			} else if (is_last_location_deleted) {
+				is_cache_loaded = false;
+			}
+		}
+	}
 
+	/**
+	 * Return the number of locations from the cache
+	 *
+	 * @return long
+	 */
+	public long getLocationCount() {
+		synchronized (cache_lock) {
+			this.loadCache();
+			return cached_location_count;
+		}
+	}
+
+	/**
+	 * Load the last location and the number of locations into the cache, if they aren't loaded
+	 * already. After this the cache is kept up to date by the inserts and deletes.
+	 *
+	 * @return void
+	 */
+	protected void loadCache() {
+		synchronized (cache_lock) {
+			if (is_cache_loaded) {
+				return;
+			}
+
+			ArrayList<GPSDatabaseRowObject> results = this.getLastNLocations(1);
+			cached_last_location = (results.size() > 0) ? results.get(0) : null;
+			cached_location_count = this.queryLocationCount();
+
+			if (cached_last_location != null) {
+				last_location_id = Math.max(last_location_id, cached_last_location.getId());
+			}
+			is_cache_loaded = true;
+
+			Helpers.log("GPSDatabaseTableHelpers.loadCache: Number of locations - " + cached_location_count);
+		}
+	}
+
+	/**
+	 * Return the id of the oldest location saved after a location from the database
+	 *
+	 * @param after_id		Identifier to start after
+	 *
+	 * @return long		Identifier, or 0 if there are no locations after the id
+	 */
+	public long getFirstLocationIdAfterId(long after_id) {
+		String query = "SELECT IFNULL(MIN(id), 0) FROM " + this.database_helpers.GPS_COORDINATES_DATABASE_TABLE + " WHERE id > ?";
+
+		long id = 0;
 		try {
-			Cursor cursor = database.rawQuery(query, null);
-			if (cursor.moveToFirst() || cursor.getCount() > 0) {
-				last_location_time = cursor.getString(0);
+			SQLiteStatement statement = this.database_helpers.getStatement(query);
+
+			synchronized (statement) {
+				statement.bindLong(1, after_id);
+				id = statement.simpleQueryForLong();
+				statement.clearBindings();
 			}
 
-			cursor.close();
+		} catch (Exception error) {
+			error.printStackTrace();
+		}
+
+		return id;
+	}
+
+	/**
+	 * Return the number of locations up to and including an id from the database
+	 *
+	 * @param watermark		Identifier of the newest location to count
+	 *
+	 * @return long
+	 */
+	protected long getLocationCountUpTo(long watermark) {
+		String query = "SELECT COUNT(*) FROM " + this.database_helpers.GPS_COORDINATES_DATABASE_TABLE + " WHERE id <= ?";
+
+		long count = -1;
+		try {
+			SQLiteStatement statement = this.database_helpers.getStatement(query);
+
+			synchronized (statement) {
+				statement.bindLong(1, watermark);
+				count = statement.simpleQueryForLong();
+				statement.clearBindings();
+			}
 
 		} catch (Exception error) {
 			error.printStackTrace();
 		}
 
-		database.close();
+		return count;
+	}
 
-		return last_location_time;
+	/**
+	 * Return the number of locations from the database that have one of a list of ids
+	 *
+	 * @NOTE The ids are counted in chunks so the number of bound arguments stays under SQLite's
+	 * 		limit.
+	 *
+	 * @param ids			Sorted list of unique ids to count
+	 * @param num_ids		Number of ids in the list to count
+	 *
+	 * @return long		Number of locations, or -1 if they couldn't be counted
+	 */
+	protected long getLocationCountById(long[] ids, int num_ids) {
+		SQLiteDatabase database = this.database_helpers.getReadableDatabase();
+
+		long count = 0;
+		try {
+			for (int start = 0; start < num_ids; start += DatabaseHelpers.DELETE_CHUNK_SIZE) {
+				int chunk_size = Math.min(DatabaseHelpers.DELETE_CHUNK_SIZE, num_ids - start);
+
+				String query = ""
+					+ "SELECT COUNT(*) FROM "
+					+ 	this.database_helpers.GPS_COORDINATES_DATABASE_TABLE
+					+ " WHERE id IN (" + DatabaseHelpers.getPlaceholders(chunk_size) + ")";
+
+				SQLiteStatement statement = (chunk_size == DatabaseHelpers.DELETE_CHUNK_SIZE) ? this.database_helpers.getStatement(query) : database.compileStatement(query);
+				synchronized (statement) {
+					for (int j = 0; j < chunk_size; j++) {
+						statement.bindLong(j + 1, ids[start + j]);
+					}
+
+					count += statement.simpleQueryForLong();
+					statement.clearBindings();
+				}
+
+				if (chunk_size != DatabaseHelpers.DELETE_CHUNK_SIZE) {
+					statement.close();
+				}
+			}
+
+		} catch (Exception error) {
+			error.printStackTrace();
+			count = -1;
+		}
+
+		return count;
 	}
 
 	/**
-	 * Return the number of locations
+	 * Return the number of locations from the database
 	 *
 	 * @return long
 	 */
-	public long getLocationCount() {
+	protected long queryLocationCount() {
 		SQLiteDatabase database = this.database_helpers.getReadableDatabase();
 
 		long count = 0;
@@ -189,7 +611,6 @@ public class GPSDatabaseTableHelpers {
 			cursor.moveToFirst();
 			count = cursor.getLong(0);
 			cursor.close();
-			database.close();
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -199,47 +620,27 @@ public class GPSDatabaseTableHelpers {
 	}
 
 	/**
-	 * Insert location into the database
+	 * Return the current power state as power flags
 	 *
 	 * @NOTE
-	 * 		other_data: Contains the following encoded fields to save on database space:
-	 * 			hacc: Horizontal accuracy in meters
-	 * 			spd: Speed in meters
-	 * 			idim: Is app in Device Idle Mode (0 = false, 1 = true, -1 = not known)
-	 * 			ii: Is app interactive (0 = false, 1 = true)
-	 * 			ipsm: Is device in Power Saving mode (0 = false, 1 = true)
-	 * 			iibo: Is app ignoring battery optimizations (0 = false, 1 = true, -1 = not known)
-	 * 			ic: Is device charging (0 = false, 1 = true, -1 = not known)
-	 *
-	 * 		For more information about "hacc" and "spd", see https://developer.android.com/reference/android/location/Location
+	 * 		The power flags contain the following tri-state values (-1 = not known, 0 = false, 1 = true):
+	 * 			idim: Is app in Device Idle Mode
+	 * 			ii: Is app interactive
+	 * 			ipsm: Is device in Power Saving mode
+	 * 			iibo: Is app ignoring battery optimizations
+	 * 			ic: Is device charging
+	 *
 	 * 		For more information about "idim", "ii", "ipsm", and "iibo", see https://developer.android.com/reference/android/os/PowerManager
 	 * 		For more information about "ic", see https://developer.android.com/reference/android/os/BatteryManager
 	 *
 	 * @param context			Context we are operating in
-	 * @param access_token		Access token of user
-	 * @param location			Location to save
 	 *
-	 * @return void
+	 * @return int
 	 */
-	public void insertLocation(Context context, String access_token, Location location) {
-		String package_name = context.getPackageName();
-		String latitude = Double.valueOf(location.getLatitude()).toString();
-		String longitude = Double.valueOf(location.getLongitude()).toString();
-		String other_data = "";
-
-		double accuracy = location.getAccuracy();
-		accuracy = Math.round(accuracy * 100) / 100.0;
-
-		double speed = location.getSpeed();
-		speed = Math.round(speed * 100) / 100.0;
+	public static int getPowerFlags(Context context) {
+		int power_flags = 0;
 
 		try {
-			JSONObject other_data_object = new JSONObject();
-
-			other_data_object.put("hacc", accuracy);
-			other_data_object.put("spd", speed);
-			other_data = other_data_object.toString();
-
 			PowerManager power_manager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
 			BatteryManager battery_manager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
 
@@ -252,57 +653,134 @@ public class GPSDatabaseTableHelpers {
 
 			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
 				is_charging = (battery_manager.isCharging()) ? 1 : 0;
-				is_ignoring_battery_optimizations = (power_manager.isIgnoringBatteryOptimizations(package_name)) ? 1 : 0;
+				is_ignoring_battery_optimizations = (power_manager.isIgnoringBatteryOptimizations(context.getPackageName())) ? 1 : 0;
 				is_device_idle_mode = (power_manager.isDeviceIdleMode()) ? 1 : 0;
 			}
 
-			other_data_object.put("idim", is_device_idle_mode);
-			other_data_object.put("ii", is_interactive);
-			other_data_object.put("ipsm", is_power_save_mode);
-			other_data_object.put("iibo", is_ignoring_battery_optimizations);
-			other_data_object.put("ic", is_charging);
-
-			other_data = other_data_object.toString();
+			power_flags = GPSDatabaseRowObject.setPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_DEVICE_IDLE_MODE, is_device_idle_mode);
+			power_flags = GPSDatabaseRowObject.setPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_INTERACTIVE, is_interactive);
+			power_flags = GPSDatabaseRowObject.setPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_POWER_SAVE_MODE, is_power_save_mode);
+			power_flags = GPSDatabaseRowObject.setPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_IGNORING_BATTERY_OPTIMIZATIONS, is_ignoring_battery_optimizations);
+			power_flags = GPSDatabaseRowObject.setPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_CHARGING, is_charging);
 
 		} catch (Exception error) {
 			error.printStackTrace();
 		}
 
-		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
+		return power_flags;
+	}
+
+	/**
+	 * Insert location into the database
+	 *
+	 * @param context			Context we are operating in
+	 * @param access_token		Access token of user
+	 * @param buffer			Buffer holding the location to save
+	 * @param index				Index of the location in the buffer
+	 *
+	 * @return void
+	 */
+	public void insertLocation(Context context, String access_token, LocationBuffer buffer, int index) {
+		this.insertLocations(context, access_token, buffer, new int[] { index }, 1);
+	}
+
+	/**
+	 * Insert locations into the database in a single transaction
+	 *
+	 * @NOTE
+	 * 		Each id is the time the location was saved in milliseconds since epoch, bumped forward if
+	 * 		needed so ids always increase. Accuracy and speed are rounded to centimeters. The power
+	 * 		state (see getPowerFlags) is read once and saved with every location.
+	 *
+	 * 		For more information about accuracy and speed, see https://developer.android.com/reference/android/location/Location
+	 *
+	 * @param context			Context we are operating in
+	 * @param access_token		Access token of user
+	 * @param buffer			Buffer holding the locations to save
+	 * @param indexes			Indexes of the locations in the buffer (oldest first)
+	 * @param count				Number of indexes to use
+	 *
+	 * @return void
+	 */
+	public void insertLocations(Context context, String access_token, LocationBuffer buffer, int[] indexes, int count) {
+		if (count <= 0) {
+			return;
+		}
+
+		int power_flags = getPowerFlags(context);
+		long access_token_id = this.database_helpers.getAccessTokenId(access_token);
 
-		String unix_time_string = Helpers.getUnixTimeAsString();
-		Helpers.log("GPSDatabaseTableHelpers.insertLocation: New location time: " + unix_time_string);
+		long[] ids = new long[count];
+		synchronized (cache_lock) {
+			long now = System.currentTimeMillis();
 
-		String query1 = ""
-			+ " DELETE FROM "
-			+	this.database_helpers.EVENTS_DATABASE_TABLE
-			+ " WHERE id = ?";
+			for (int i = 0; i < count; i++) {
+				ids[i] = Math.max(now, last_location_id + 1);
+				last_location_id = ids[i];
+			}
+		}
 
-		String[] args1 = new String[] { unix_time_string };
+		Helpers.log("GPSDatabaseTableHelpers.insertLocations: Saving " + count + " location(s), new location time: " + Helpers.formatUnixTime(ids[count - 1]));
 
-		String query2 = ""
+		String query = ""
 			+ "INSERT INTO "
 			+ 	this.database_helpers.GPS_COORDINATES_DATABASE_TABLE
-			+ "		(id, access_token, latitude, longitude, other_data, create_date) "
+			+ "		(id, access_token_id, latitude, longitude, horizontal_accuracy, speed, power_flags) "
 			+ " VALUES "
-			+ "		(?, ?, ?, ?, ?, ?) ";
+			+ "		(?, ?, ?, ?, ?, ?, ?) ";
 
-		String[] args2 = new String[] {
-			unix_time_string,
-			access_token,
-			latitude,
-			longitude,
-			other_data,
-			unix_time_string
-		};
+		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
+		SQLiteStatement statement = this.database_helpers.getStatement(query);
+		GPSDatabaseRowObject last_inserted_location = null;
+		int num_inserted = 0;
 
 		try {
-			database.execSQL(query1, args1);
-			database.execSQL(query2, args2);
-			database.close();
+			synchronized (statement) {
+				database.beginTransactionNonExclusive();
+
+				try {
+					for (int i = 0; i < count; i++) {
+						int index = indexes[i];
+						double latitude = buffer.getLatitude(index);
+						double longitude = buffer.getLongitude(index);
+						double accuracy = Math.round(buffer.getAccuracy(index) * 100) / 100.0;
+						double speed = Math.round(buffer.getSpeed(index) * 100) / 100.0;
+
+						statement.bindLong(1, ids[i]);
+						DatabaseHelpers.bindIdOrNull(statement, 2, access_token_id);
+						statement.bindDouble(3, latitude);
+						statement.bindDouble(4, longitude);
+						statement.bindDouble(5, accuracy);
+						statement.bindDouble(6, speed);
+						statement.bindLong(7, power_flags);
+
+						if (statement.executeInsert() != -1) {
+							last_inserted_location = new GPSDatabaseRowObject(ids[i], access_token, latitude, longitude, accuracy, speed, power_flags);
+							num_inserted++;
+						}
+					}
+
+					database.setTransactionSuccessful();
+
+				} finally {
+					statement.clearBindings();
+					database.endTransaction();
+				}
+			}
+
+			synchronized (cache_lock) {
+				if (is_cache_loaded && last_inserted_location != null) {
+					cached_last_location = last_inserted_location;
+					cached_location_count += num_inserted;
+				}
+			}
 
 		} catch (Exception error) {
 			error.printStackTrace();
+
+			synchronized (cache_lock) {
+				is_cache_loaded = false;
+			}
 		}
 	}
 }
@@ -0,0 +1,235 @@
+/**
+ * Spatial index for Geofences
+ *
+ * Geofences are bucketed into a fixed latitude/longitude grid using their bounding boxes, so a
+ * lookup only has to look at the geofences that share a grid cell with the point being checked.
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.Geofence;
+
+public class GeofenceIndex {
+	/**
+	 * Size of a grid cell (in degrees, roughly 1.1 km of latitude)
+	 *
+	 * @var double
+	 */
+	protected static final double CELL_SIZE_DEGREES = 0.01;
+
+	/**
+	 * Geofences covering more cells than this are kept in a separate list that is always checked
+	 *
+	 * @var int
+	 */
+	protected static final int MAX_CELLS_PER_GEOFENCE = 256;
+
+	/**
+	 * Area queries covering more cells than this scan the stored geofences instead of the grid
+	 *
+	 * @var int
+	 */
+	protected static final int MAX_CELLS_PER_QUERY = 1024;
+
+	/**
+	 * Geofences stored by the grid cell they overlap
+	 *
+	 * @var HashMap<Long, ArrayList<Geofence>>
+	 */
+	protected HashMap<Long, ArrayList<Geofence>> cells;
+
+	/**
+	 * Geofences too large to store in the grid
+	 *
+	 * @var ArrayList<Geofence>
+	 */
+	protected ArrayList<Geofence> oversized_geofences;
+
+	/**
+	 * Construct the object
+	 *
+	 * @return void
+	 */
+	public GeofenceIndex() {
+		this.cells = new HashMap<>();
+		this.oversized_geofences = new ArrayList<>();
+	}
+
+	/**
+	 * Add a geofence to the index
+	 *
+	 * @param geofence		Geofence to add
+	 *
+	 * @return void
+	 */
+	public void add(Geofence geofence) {
+		int min_row = getRow(geofence.getMinLatitude());
+		int max_row = getRow(geofence.getMaxLatitude());
+		int min_column = getColumn(geofence.getMinLongitude());
+		int max_column = getColumn(geofence.getMaxLongitude());
+
+		long num_cells = ((long)(max_row - min_row + 1)) * ((long)(max_column - min_column + 1));
+		if (num_cells > MAX_CELLS_PER_GEOFENCE) {
+			this.oversized_geofences.add(geofence);
+			return;
+		}
+
+		for (int row = min_row; row <= max_row; row++) {
+			for (int column = min_column; column <= max_column; column++) {
+				long key = getKey(row, column);
+
+				ArrayList<Geofence> cell = this.cells.get(key);
+				if (cell == null) {
+					cell = new ArrayList<>(2);
+					this.cells.put(key, cell);
+				}
+
+				cell.add(geofence);
+			}
+		}
+	}
+
+	/**
+	 * Remove every geofence from the index
+	 *
+	 * @return void
+	 */
+	public void clear() {
+		this.cells.clear();
+		this.oversized_geofences.clear();
+	}
+
+	/**
+	 * Collect the geofences whose bounding box contains the point
+	 *
+	 * @param latitude			Latitude of point
+	 * @param longitude			Longitude of point
+	 * @param candidates		Collection to add the candidate geofences to
+	 *
+	 * @return void
+	 */
+	public void query(double latitude, double longitude, Collection<Geofence> candidates) {
+		ArrayList<Geofence> cell = this.cells.get(getKey(getRow(latitude), getColumn(longitude)));
+
+		if (cell != null) {
+			for (int i = 0; i < cell.size(); i++) {
+				Geofence geofence = cell.get(i);
+
+				if (geofence.isPointWithinBoundingBox(latitude, longitude)) {
+					candidates.add(geofence);
+				}
+			}
+		}
+
+		for (int i = 0; i < this.oversized_geofences.size(); i++) {
+			Geofence geofence = this.oversized_geofences.get(i);
+
+			if (geofence.isPointWithinBoundingBox(latitude, longitude)) {
+				candidates.add(geofence);
+			}
+		}
+	}
+
+	/**
+	 * Collect the geofences whose bounding box overlaps an area. A geofence can be stored in more
+	 * than one cell, so the collection should ignore duplicates (i.e. a Set).
+	 *
+	 * @param min_latitude		Southern edge of area
+	 * @param min_longitude		Western edge of area
+	 * @param max_latitude		Northern edge of area
+	 * @param max_longitude		Eastern edge of area
+	 * @param candidates		Collection to add the candidate geofences to
+	 *
+	 * @return void
+	 */
+	public void query(double min_latitude, double min_longitude, double max_latitude, double max_longitude, Collection<Geofence> candidates) {
+		int min_row = getRow(min_latitude);
+		int max_row = getRow(max_latitude);
+		int min_column = getColumn(min_longitude);
+		int max_column = getColumn(max_longitude);
+
+		long num_cells = ((long)(max_row - min_row + 1)) * ((long)(max_column - min_column + 1));
+		if (num_cells > MAX_CELLS_PER_QUERY) {
+			for (ArrayList<Geofence> cell : this.cells.values()) {
+				addOverlapping(cell, min_latitude, min_longitude, max_latitude, max_longitude, candidates);
+			}
+
+		} else {
+			for (int row = min_row; row <= max_row; row++) {
+				for (int column = min_column; column <= max_column; column++) {
+					ArrayList<Geofence> cell = this.cells.get(getKey(row, column));
+
+					if (cell != null) {
+						addOverlapping(cell, min_latitude, min_longitude, max_latitude, max_longitude, candidates);
+					}
+				}
+			}
+		}
+
+		addOverlapping(this.oversized_geofences, min_latitude, min_longitude, max_latitude, max_longitude, candidates);
+	}
+
+	/**
+	 * Add the geofences whose bounding box overlaps an area
+	 *
+	 * @param geofences			Geofences to check
+	 * @param min_latitude		Southern edge of area
+	 * @param min_longitude		Western edge of area
+	 * @param max_latitude		Northern edge of area
+	 * @param max_longitude		Eastern edge of area
+	 * @param candidates		Collection to add the candidate geofences to
+	 *
+	 * @return void
+	 */
+	protected static void addOverlapping(ArrayList<Geofence> geofences, double min_latitude, double min_longitude, double max_latitude, double max_longitude, Collection<Geofence> candidates) {
+		for (int i = 0; i < geofences.size(); i++) {
+			Geofence geofence = geofences.get(i);
+
+			if (
+				geofence.getMinLatitude() <= max_latitude && geofence.getMaxLatitude() >= min_latitude &&
+				geofence.getMinLongitude() <= max_longitude && geofence.getMaxLongitude() >= min_longitude
+			) {
+				candidates.add(geofence);
+			}
+		}
+	}
+
+	/**
+	 * Return the grid column for a longitude
+	 *
+	 * @param longitude		Longitude to convert
+	 *
+	 * @return int
+	 */
+	protected static int getColumn(double longitude) {
+		return (int) Math.floor(longitude / CELL_SIZE_DEGREES);
+	}
+
+	/**
+	 * Return the key for a grid cell
+	 *
+	 * @param row			Row of cell
+	 * @param column		Column of cell
+	 *
+	 * @return long
+	 */
+	protected static long getKey(int row, int column) {
+		return (((long) row) << 32) | (column & 0xffffffffL);
+	}
+
+	/**
+	 * Return the grid row for a latitude
+	 *
+	 * @param latitude		Latitude to convert
+	 *
+	 * @return int
+	 */
+	protected static int getRow(double latitude) {
+		return (int) Math.floor(latitude / CELL_SIZE_DEGREES);
+	}
+}
@@ -1,6 +1,9 @@
 /**
  * Manager for Geofences
  *
+ * One manager is shared by the process (see getInstance), so the geofence JSON is only parsed
+ * when the process starts or the geofence settings change, not for every delivery of locations.
+ *
  * @copyright Center for Health Enhancement Systems Studies
  */
 package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
@@ -8,18 +11,62 @@ package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
 import android.content.Context;
 import android.location.Location;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import edu.wisc.chess.plugins.chesslocationmonitoring.models.CircularGeofence;
 import edu.wisc.chess.plugins.chesslocationmonitoring.models.GPSPoint;
 import edu.wisc.chess.plugins.chesslocationmonitoring.models.Geofence;
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.GeofenceState;
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.GeofenceTransition;
 import edu.wisc.chess.plugins.chesslocationmonitoring.models.PolygonGeofence;
 
 public class GeofenceManager {
+	/**
+	 * Distance past the boundary (in meters) a fix must be before a geofence is exited, for
+	 * geofences that don't set their own "hysteresis"
+	 *
+	 * @var double
+	 */
+	public static final double DEFAULT_HYSTERESIS_METERS = 10;
+
+	/**
+	 * Time (in milliseconds) fixes must stay on the other side of the boundary before a geofence
+	 * is entered or exited, for geofences that don't set their own "min_dwell_seconds"
+	 *
+	 * @var long
+	 */
+	public static final long DEFAULT_MIN_DWELL_MILLISECONDS = 0;
+
+	/**
+	 * Most of a fix's horizontal accuracy (in meters) used when classifying it, so very
+	 * inaccurate fixes near a geofence can't leave it uncertain indefinitely
+	 *
+	 * @var double
+	 */
+	protected static final double MAX_ACCURACY_BUFFER_METERS = 100;
+
+	/**
+	 * Instance shared by the process
+	 *
+	 * @var GeofenceManager
+	 */
+	protected static GeofenceManager instance = null;
+
+	/**
+	 * Details for the geofence notification (i.e. title and body)
+	 *
+	 * @var HashMap<String, String>
+	 */
+	protected HashMap<String, String> notification_details;
 	/**
 	 * Dictionary of geofences and their ids
 	 *
@@ -27,6 +74,41 @@ public class GeofenceManager {
 	 */
 	protected HashMap<String, Geofence> geofences;
 
+	/**
+	 * Spatial index over the geofences' bounding boxes
+	 *
+	 * @var GeofenceIndex
+	 */
+	protected GeofenceIndex geofence_index;
+
+	/**
+	 * Geofences that still need to be updated when a point is outside of them (i.e. any state but INACTIVE)
+	 *
+	 * @var HashMap<String, Geofence>
+	 */
+	protected HashMap<String, Geofence> unsettled_geofences;
+
+	/**
+	 * Ids of geofences whose state changed since the states were last saved
+	 *
+	 * @var HashSet<String>
+	 */
+	protected HashSet<String> dirty_place_ids;
+
+	/**
+	 * Number of geofences in each state (indexed by GeofenceState code)
+	 *
+	 * @var int[]
+	 */
+	protected int[] num_geofences_by_state;
+
+	/**
+	 * Geofences whose bounding box contains the point being checked (reused between updates)
+	 *
+	 * @var LinkedHashSet<Geofence>
+	 */
+	protected LinkedHashSet<Geofence> candidate_geofences;
+
 	/**
 	 * Construct the object
 	 *
@@ -34,6 +116,70 @@ public class GeofenceManager {
 	 */
 	public GeofenceManager() {
 		this.geofences = new HashMap<>();
+		this.geofence_index = new GeofenceIndex();
+		this.unsettled_geofences = new HashMap<>();
+		this.candidate_geofences = new LinkedHashSet<>();
+		this.notification_details = new HashMap<>();
+		this.dirty_place_ids = new HashSet<>();
+		this.num_geofences_by_state = new int[GeofenceState.getCount()];
+	}
+
+	/**
+	 * Return the instance shared by the process, building it from the geofence settings the first
+	 * time and after the settings change
+	 *
+	 * @param context		Context to use
+	 *
+	 * @return GeofenceManager
+	 */
+	public static synchronized GeofenceManager getInstance(Context context) {
+		if (instance == null) {
+			SettingsDatabaseTableHelpers settings_helper = new SettingsDatabaseTableHelpers(context);
+
+			GeofenceManager geofence_manager = new GeofenceManager();
+			geofence_manager.addGeofencesFromString(settings_helper.getSettingByKey("geofence_json_string"));
+			geofence_manager.loadGeofenceStatesFromDatabase(context);
+
+			instance = geofence_manager;
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Drop the instance shared by the process, so the next call to getInstance parses the
+	 * geofence settings again. Called when the geofence settings are saved or deleted.
+	 *
+	 * @return void
+	 */
+	public static synchronized void invalidate() {
+		instance = null;
+	}
+
+	/**
+	 * Add a geofence to the list of geofences and the spatial index
+	 *
+	 * @param geofence		Geofence to add
+	 *
+	 * @return void
+	 */
+	protected void addGeofence(Geofence geofence) {
+		Geofence replaced_geofence = this.geofences.put(geofence.getId(), geofence);
+		this.updateUnsettledGeofence(geofence);
+		this.num_geofences_by_state[geofence.getState().getCode()]++;
+
+		if (replaced_geofence == null) {
+			this.geofence_index.add(geofence);
+			return;
+		}
+
+		this.num_geofences_by_state[replaced_geofence.getState().getCode()]--;
+
+		// Replacing a geofence leaves a stale entry in the index, so rebuild it
+		this.geofence_index.clear();
+		for (Geofence temp_geofence : this.geofences.values()) {
+			this.geofence_index.add(temp_geofence);
+		}
 	}
 
 	/**
@@ -46,7 +192,7 @@ public class GeofenceManager {
 	 * @return void
 	 */
 	public void addCircularGeofence(String _id, GPSPoint center, double radius) {
-		this.geofences.put(_id, new CircularGeofence(_id, center, radius));
+		this.addGeofence(new CircularGeofence(_id, center, radius));
 	}
 
 	/**
@@ -58,63 +204,181 @@ public class GeofenceManager {
 	 * @return void
 	 */
 	public void addPolygonGeofence(String _id, GPSPoint[] points) {
-		this.geofences.put(_id, new PolygonGeofence(_id, points));
+		this.addGeofence(new PolygonGeofence(_id, points));
 	}
 
 	/**
-	 * Return geofences by their current state
+	 * Add geofences and the notification details from a string of JSON
 	 *
-	 * @param state			State to return
+	 * @param json		String of geofences to parse and add
 	 *
-	 * @return HashMap<String, Geofence>
+	 * @return void
 	 */
-	public HashMap<String, Geofence> getGeofencesByState(String state) {
-		HashMap<String, Geofence> geofence_states = new HashMap<>();
+	public void addGeofencesFromString(String json) {
+		if (json == null || json.isEmpty()) {
+			return;
+		}
 
-		for (String place_id : this.geofences.keySet()) {
-			Geofence temp_geofence = this.geofences.get(place_id);
+		int i = 0;
+		int j = 0;
+
+		try {
+			JSONObject json_object = new JSONObject(json);
+			JSONObject notification_details = json_object.getJSONObject("notification");
+
+			this.notification_details.put("title", notification_details.getString("title"));
+			this.notification_details.put("body", notification_details.getString("body"));
+
+			JSONObject circular_geofences_object = json_object.getJSONObject("circular_geofences");
+			JSONObject polygon_geofences_object = json_object.getJSONObject("polygon_geofences");
+
+			// Optional defaults for every geofence, and overrides by place id
+			double default_hysteresis = json_object.optDouble("hysteresis", DEFAULT_HYSTERESIS_METERS);
+			double default_min_dwell_seconds = json_object.optDouble("min_dwell_seconds", DEFAULT_MIN_DWELL_MILLISECONDS / 1000.0);
+
+			JSONObject geofence_options = json_object.optJSONObject("geofence_options");
+			if (geofence_options == null) {
+				geofence_options = new JSONObject();
+			}
+
+			Iterator<String> iterable = circular_geofences_object.keys();
+			while (iterable.hasNext()) {
+				String place_id = iterable.next();
+
+				JSONObject circular_geofence = circular_geofences_object.getJSONObject(place_id);
+				JSONObject center_object = circular_geofence.getJSONObject("center");
+
+				double latitude = center_object.getDouble("lat");
+				double longitude = center_object.getDouble("lon");
+				double radius = Double.parseDouble(circular_geofence.getString("radius"));
+
+				GPSPoint center = new GPSPoint(latitude, longitude);
+				this.addCircularGeofence(place_id, center, radius);
+				this.setGeofenceOptions(this.geofences.get(place_id), geofence_options.optJSONObject(place_id), default_hysteresis, default_min_dwell_seconds);
+
+				i++;
+			}
+
+			iterable = polygon_geofences_object.keys();
+			while (iterable.hasNext()) {
+				String place_id = iterable.next();
+
+				JSONArray coordinates = polygon_geofences_object.getJSONArray(place_id);
+				GPSPoint[] points = new GPSPoint[coordinates.length()];
 
-			if (state.isEmpty() || temp_geofence.getState().equalsIgnoreCase(state)) {
-				geofence_states.put(place_id, temp_geofence);
+				for (int k = 0; k < coordinates.length(); k++) {
+					JSONObject coordinate = coordinates.getJSONObject(k);
+
+					double latitude = coordinate.getDouble("lat");
+					double longitude = coordinate.getDouble("lon");
+
+					points[k] = new GPSPoint(latitude, longitude);
+				}
+
+				this.addPolygonGeofence(place_id, points);
+				this.setGeofenceOptions(this.geofences.get(place_id), geofence_options.optJSONObject(place_id), default_hysteresis, default_min_dwell_seconds);
+
+				j++;
 			}
+
+		} catch (Exception error) {
+			// Do Nothing
+			error.printStackTrace();
 		}
 
-		return geofence_states;
+		Helpers.log("GeofenceManager.addGeofencesFromString: Num circular geofences = " + Double.toString(i) + ", Num polygon geofences = "  + Double.toString(j) + ", Total = " + Long.toString(this.geofences.size()));
 	}
 
 	/**
-	 * Load geofence states from database
+	 * Return the distance from a point to the nearest geofence boundary (in meters), whether the
+	 * point is inside or outside of that geofence. Geofences whose bounding box is further away
+	 * than the nearest boundary found so far are skipped without measuring them.
 	 *
-	 * @param context     Context to use
+	 * @param latitude		Latitude of point
+	 * @param longitude		Longitude of point
 	 *
-	 * @return void
+	 * @return double		Distance, or Double.MAX_VALUE if there are no geofences
 	 */
-	public void loadGeofenceStatesFromDatabase(Context context) {
-		SettingsDatabaseTableHelpers settings_helper = new SettingsDatabaseTableHelpers(context);
+	public double getDistanceToNearestGeofenceBoundary(double latitude, double longitude) {
+		double nearest_distance = Double.MAX_VALUE;
 
-		String geofence_states_string = settings_helper.getSettingByKey("geofence_states_string");
-		if (geofence_states_string == null) {
-			return;
+		for (Geofence temp_geofence : this.geofences.values()) {
+			if (temp_geofence.getDistanceToBoundingBox(latitude, longitude) >= nearest_distance) {
+				continue;
+			}
+
+			try {
+				nearest_distance = Math.min(nearest_distance, Math.abs(temp_geofence.getDistanceToBoundary(latitude, longitude)));
+
+			} catch (Exception error) {
+				error.printStackTrace();
+			}
 		}
 
-		try {
-			JSONObject geofence_states = new JSONObject(geofence_states_string);
+		return nearest_distance;
+	}
 
-			Iterator<String> iterable = geofence_states.keys();
-			while (iterable.hasNext()) {
-				String place_id = iterable.next();
-				if (!this.geofences.containsKey(place_id)) {
-					continue;
-				}
+	/**
+	 * Return the number of geofences
+	 *
+	 * @return int
+	 */
+	public int getNumGeofences() {
+		return this.geofences.size();
+	}
+
+	/**
+	 * Return the number of geofences in a state. The counts are kept up to date as states change,
+	 * so this doesn't scan the geofences.
+	 *
+	 * @param state			State to count
+	 *
+	 * @return int
+	 */
+	public int getNumGeofencesInState(GeofenceState state) {
+		return this.num_geofences_by_state[state.getCode()];
+	}
+
+	/**
+	 * Return details for the geofence notification (i.e. title and body)
+	 *
+	 * @return HashMap<String, String>
+	 */
+	public HashMap<String, String> getNotificationDetails() {
+		return this.notification_details;
+	}
 
-				Geofence temp_geofence = this.geofences.get(place_id);
-				temp_geofence.setState(geofence_states.getString(place_id));
+	/**
+	 * Load geofence states from database
+	 *
+	 * @NOTE States saved for places that are no longer geofences (i.e. removed from the geofence
+	 * 		settings) are deleted, so the table doesn't keep growing as the settings change.
+	 *
+	 * @param context     Context to use
+	 *
+	 * @return void
+	 */
+	public void loadGeofenceStatesFromDatabase(Context context) {
+		GeofenceStateDatabaseTableHelpers geofence_state_helper = new GeofenceStateDatabaseTableHelpers(context);
+		HashMap<String, String> geofence_states = geofence_state_helper.getGeofenceStates();
+		ArrayList<String> stale_place_ids = new ArrayList<>();
 
-				this.geofences.put(place_id, temp_geofence);
+		for (String place_id : geofence_states.keySet()) {
+			Geofence temp_geofence = this.geofences.get(place_id);
+			if (temp_geofence == null) {
+				stale_place_ids.add(place_id);
+				continue;
 			}
 
-		} catch (Exception error) {
-			error.printStackTrace();
+			this.setGeofenceState(temp_geofence, GeofenceState.fromValue(geofence_states.get(place_id)));
+			this.updateUnsettledGeofence(temp_geofence);
+		}
+
+		this.dirty_place_ids.clear();
+
+		if (!stale_place_ids.isEmpty()) {
+			geofence_state_helper.deleteGeofenceStatesByPlaceId(stale_place_ids);
+			Helpers.log("GeofenceManager.loadGeofenceStatesFromDatabase: Deleted " + stale_place_ids.size() + " states of removed geofences");
 		}
 	}
 
@@ -126,35 +390,67 @@ public class GeofenceManager {
 	public void resetGeofenceStates() {
 		for (String place_id : this.geofences.keySet()) {
 			Geofence temp_geofence = this.geofences.get(place_id);
-			temp_geofence.setState("");
+			this.setGeofenceState(temp_geofence, GeofenceState.NONE);
+			temp_geofence.setPendingTransitionTime(0);
 
-			this.geofences.put(place_id, temp_geofence);
+			this.unsettled_geofences.put(place_id, temp_geofence);
 		}
 	}
 
 	/**
-	 * Save geofence states to database
+	 * Save the states of geofences that changed since they were last saved, in one transaction
+	 *
+	 * @NOTE The changed geofences are only forgotten once the states are saved, so a failed save
+	 * 		is tried again the next time.
 	 *
 	 * @param context     Context to use
 	 *
 	 * @return void
 	 */
 	public void saveGeofenceStatesToDatabase(Context context) {
-		SettingsDatabaseTableHelpers settings_helper = new SettingsDatabaseTableHelpers(context);
+		if (this.dirty_place_ids.isEmpty()) {
+			return;
+		}
 
-		try {
-			JSONObject geofence_states = new JSONObject();
+		HashMap<String, String> geofence_states = new HashMap<>();
 
-			for (String place_id : this.geofences.keySet()) {
-				Geofence temp_geofence = this.geofences.get(place_id);
-				geofence_states.put(place_id, temp_geofence.getState());
+		for (String place_id : this.dirty_place_ids) {
+			Geofence temp_geofence = this.geofences.get(place_id);
+			if (temp_geofence != null) {
+				geofence_states.put(place_id, temp_geofence.getState().getValue());
 			}
+		}
 
-			settings_helper.insertSetting("geofence_states_string", geofence_states.toString());
+		GeofenceStateDatabaseTableHelpers geofence_state_helper = new GeofenceStateDatabaseTableHelpers(context);
+		if (!geofence_state_helper.saveGeofenceStates(geofence_states)) {
+			Helpers.log("GeofenceManager.saveGeofenceStatesToDatabase: Failed to save " + geofence_states.size() + " changed geofence states");
+			return;
+		}
 
-		} catch (Exception error) {
-			error.printStackTrace();
+		Helpers.log("GeofenceManager.saveGeofenceStatesToDatabase: Saved " + geofence_states.size() + " changed geofence states");
+
+		this.dirty_place_ids.clear();
+	}
+
+	/**
+	 * Set the state of a geofence, updating the state counts and marking it to be saved if the
+	 * state changed
+	 *
+	 * @param geofence		Geofence to update
+	 * @param state			State to set
+	 *
+	 * @return void
+	 */
+	protected void setGeofenceState(Geofence geofence, GeofenceState state) {
+		GeofenceState previous_state = geofence.getState();
+		if (state == previous_state) {
+			return;
 		}
+
+		geofence.setState(state);
+		this.num_geofences_by_state[previous_state.getCode()]--;
+		this.num_geofences_by_state[state.getCode()]++;
+		this.dirty_place_ids.add(geofence.getId());
 	}
 
 	/**
@@ -162,43 +458,229 @@ public class GeofenceManager {
 	 *
 	 * @param point		Point used to update geofence states
 	 *
-	 * @return void
+	 * @return ArrayList<GeofenceTransition>
 	 */
-	public void updateGeofenceStates(Location point) {
-		Helpers.log("GeofenceManager.updateGeofenceStates start, num geofences = " + Integer.toString(this.geofences.size()));
+	public ArrayList<GeofenceTransition> updateGeofenceStates(Location point) {
+		LocationBuffer buffer = new LocationBuffer(1);
+		buffer.add(point);
 
-		for (String place_id : this.geofences.keySet()) {
-			Geofence temp_geofence = this.geofences.get(place_id);
+		return this.updateGeofenceStates(buffer, 0, 1);
+	}
 
-			try {
-				String geofence_state = temp_geofence.getState();
+	/**
+	 * Update geofence states with an ordered trajectory of fixes
+	 *
+	 * The index is queried once with the bounding box of the whole trajectory. Each candidate
+	 * geofence then walks the trajectory in order, and only fixes within its bounding box are
+	 * checked exactly. Every other geofence is outside of the whole trajectory, which only changes
+	 * its state if it isn't already INACTIVE.
+	 *
+	 * @param buffer		Buffer holding the fixes (oldest first)
+	 * @param offset		Index of the first fix to use
+	 * @param count			Number of fixes to use
+	 *
+	 * @return ArrayList<GeofenceTransition>
+	 */
+	public ArrayList<GeofenceTransition> updateGeofenceStates(LocationBuffer buffer, int offset, int count) {
+		Helpers.log("GeofenceManager.updateGeofenceStates start, num geofences = " + Integer.toString(this.geofences.size()) + ", num fixes = " + Integer.toString(count));
 
-				if (temp_geofence.isPointWithinGeofence(point)) {
-					Helpers.log("GeofenceManager.updateGeofenceStates within geofence: id = " + place_id + ", state = " + temp_geofence.getState());
+		ArrayList<GeofenceTransition> transitions = new ArrayList<>();
+		if (count <= 0) {
+			return transitions;
+		}
 
-					if (geofence_state.equalsIgnoreCase("inactivated") || geofence_state.equalsIgnoreCase("inactive") || geofence_state.equalsIgnoreCase("")) {
-						temp_geofence.setState("activated");
+		double min_latitude = buffer.getLatitude(offset);
+		double max_latitude = min_latitude;
+		double min_longitude = buffer.getLongitude(offset);
+		double max_longitude = min_longitude;
+
+		for (int k = offset + 1; k < offset + count; k++) {
+			min_latitude = Math.min(min_latitude, buffer.getLatitude(k));
+			max_latitude = Math.max(max_latitude, buffer.getLatitude(k));
+			min_longitude = Math.min(min_longitude, buffer.getLongitude(k));
+			max_longitude = Math.max(max_longitude, buffer.getLongitude(k));
+		}
+
+		this.candidate_geofences.clear();
+		this.geofence_index.query(min_latitude, min_longitude, max_latitude, max_longitude, this.candidate_geofences);
+
+		for (Geofence temp_geofence : this.candidate_geofences) {
+			for (int k = offset; k < offset + count; k++) {
+				int classification;
+
+				try {
+					classification = this.classifyFix(temp_geofence, buffer, k);
+
+				} catch (Exception error) {
+					error.printStackTrace();
+					break;
+				}
 
-					} else {
-						temp_geofence.setState("active");
+				// Leave fixes that could be on either side of the boundary for the next fix to decide
+				if (classification == Geofence.POINT_UNCERTAIN) {
+					continue;
+				}
+
+				GeofenceTransition transition = this.updateGeofenceState(temp_geofence, classification == Geofence.POINT_INSIDE, buffer.getTime(k));
+				if (transition != null) {
+					Helpers.log("GeofenceManager.updateGeofenceStates transition: id = " + transition.getPlaceId() + ", type = " + transition.getType());
+					transitions.add(transition);
+				}
+			}
+		}
+
+		// Every fix is outside of these geofences' bounding boxes, but one that was entered may
+		// still be within its hysteresis. Without a minimum dwell time, two fixes outside settle
+		// it into INACTIVE. With one, the exit is held until fixes have stayed outside for the
+		// dwell time, so the geofence can stay unsettled across many batches before it settles.
+		Iterator<Geofence> iterator = this.unsettled_geofences.values().iterator();
+		while (iterator.hasNext()) {
+			Geofence temp_geofence = iterator.next();
+
+			if (!this.candidate_geofences.contains(temp_geofence)) {
+				for (int k = offset; k < offset + count && !temp_geofence.getState().isSettled(); k++) {
+					int classification = Geofence.POINT_OUTSIDE;
+
+					try {
+						if (temp_geofence.getState().isInside()) {
+							classification = this.classifyFix(temp_geofence, buffer, k);
+						}
+
+					} catch (Exception error) {
+						error.printStackTrace();
+						break;
 					}
 
-				} else {
-					if (geofence_state.equalsIgnoreCase("activated") || geofence_state.equalsIgnoreCase("active")  || geofence_state.equalsIgnoreCase("")) {
-						temp_geofence.setState("inactivated");
+					if (classification == Geofence.POINT_UNCERTAIN) {
+						continue;
+					}
 
-					} else {
-						temp_geofence.setState("inactive");
+					GeofenceTransition transition = this.updateGeofenceState(temp_geofence, classification == Geofence.POINT_INSIDE, buffer.getTime(k));
+					if (transition != null) {
+						transitions.add(transition);
 					}
 				}
+			}
 
-				this.geofences.put(place_id, temp_geofence);
+			if (temp_geofence.getState().isSettled()) {
+				iterator.remove();
+			}
+		}
 
-			} catch (Exception error) {
-				error.printStackTrace();
+		for (Geofence temp_geofence : this.candidate_geofences) {
+			this.updateUnsettledGeofence(temp_geofence);
+		}
+
+		Collections.sort(transitions, (a, b) -> Long.compare(a.getTime(), b.getTime()));
+
+		Helpers.log("GeofenceManager.updateGeofenceStates end, num candidates = " + Integer.toString(this.candidate_geofences.size()) + ", num unsettled = " + Integer.toString(this.unsettled_geofences.size()) + ", num transitions = " + Integer.toString(transitions.size()));
+
+		return transitions;
+	}
+
+	/**
+	 * Classify a fix as inside, outside or uncertain for a geofence (see the Geofence POINT
+	 * constants). A geofence that has been entered also needs the fix to be past its hysteresis
+	 * before it is outside, so fixes jittering around the boundary don't flip it.
+	 *
+	 * @param geofence		Geofence to check
+	 * @param buffer		Buffer holding the fix
+	 * @param index			Index of the fix
+	 *
+	 * @return int
+	 *
+	 * @throws Exception
+	 */
+	protected int classifyFix(Geofence geofence, LocationBuffer buffer, int index) throws Exception {
+		double accuracy = Math.max(0, Math.min(buffer.getAccuracy(index), MAX_ACCURACY_BUFFER_METERS));
+		double hysteresis = geofence.getState().isInside() ? geofence.getHysteresis() : 0;
+
+		return geofence.classifyPoint(buffer.getLatitude(index), buffer.getLongitude(index), accuracy, hysteresis);
+	}
+
+	/**
+	 * Move a geofence to its next state
+	 *
+	 * A fix on the other side of the boundary only enters or exits the geofence once fixes have
+	 * stayed on that side for the geofence's minimum dwell time. A fix back on the original side
+	 * before then cancels it, and the transition is given the time of the first fix that crossed.
+	 *
+	 * @param geofence				Geofence to update
+	 * @param is_within_geofence	Indicates if the point is within the geofence
+	 * @param time					Time of the fix (milliseconds since epoch)
+	 *
+	 * @return GeofenceTransition	Transition caused by the fix (enter, dwell or exit), or null if there wasn't one
+	 */
+	protected GeofenceTransition updateGeofenceState(Geofence geofence, boolean is_within_geofence, long time) {
+		GeofenceState previous_state = geofence.getState();
+
+		if (is_within_geofence == previous_state.isInside()) {
+			geofence.setPendingTransitionTime(0);
+
+		} else if (geofence.getMinDwellTime() > 0) {
+			if (geofence.getPendingTransitionTime() == 0) {
+				geofence.setPendingTransitionTime(time);
+			}
+
+			if (time - geofence.getPendingTransitionTime() < geofence.getMinDwellTime()) {
+				return null;
 			}
+
+			time = geofence.getPendingTransitionTime();
+			geofence.setPendingTransitionTime(0);
+		}
+
+		GeofenceState next_state = previous_state.next(is_within_geofence);
+		this.setGeofenceState(geofence, next_state);
+
+		String transition_type = previous_state.getTransitionType(next_state);
+		if (transition_type == null) {
+			return null;
 		}
 
-		Helpers.log("GeofenceManager.updateGeofenceStates end");
+		return new GeofenceTransition(geofence.getId(), transition_type, time);
+	}
+
+	/**
+	 * Set the hysteresis and minimum dwell time of a geofence from its options
+	 *
+	 * @param geofence					Geofence to update
+	 * @param options					Options for the geofence (may be null)
+	 * @param default_hysteresis		Hysteresis (in meters) when the options don't set it
+	 * @param default_min_dwell_seconds	Minimum dwell time (in seconds) when the options don't set it
+	 *
+	 * @return void
+	 */
+	protected void setGeofenceOptions(Geofence geofence, JSONObject options, double default_hysteresis, double default_min_dwell_seconds) {
+		if (geofence == null) {
+			return;
+		}
+
+		double hysteresis = default_hysteresis;
+		double min_dwell_seconds = default_min_dwell_seconds;
+
+		if (options != null) {
+			hysteresis = options.optDouble("hysteresis", default_hysteresis);
+			min_dwell_seconds = options.optDouble("min_dwell_seconds", default_min_dwell_seconds);
+		}
+
+		geofence.setHysteresis(hysteresis);
+		geofence.setMinDwellTime(Math.round(min_dwell_seconds * 1000));
+	}
+
+	/**
+	 * Track whether a geofence still needs updating when a point is outside of it
+	 *
+	 * @param geofence		Geofence to track
+	 *
+	 * @return void
+	 */
+	protected void updateUnsettledGeofence(Geofence geofence) {
+		if (geofence.getState().isSettled()) {
+			this.unsettled_geofences.remove(geofence.getId());
+
+		} else {
+			this.unsettled_geofences.put(geofence.getId(), geofence);
+		}
 	}
 }
@@ -0,0 +1,179 @@
+/**
+ * Geofence State Database Table Helpers Object
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public class GeofenceStateDatabaseTableHelpers {
+	/**
+	 * Database helpers
+	 *
+	 * @var DatabaseHelpers
+	 */
+	DatabaseHelpers database_helpers = null;
+
+	/**
+	 * Constructor for the database
+	 *
+	 * @param context		Context to operate in
+	 *
+	 * @return void
+	 */
+	public GeofenceStateDatabaseTableHelpers(Context context) {
+		this.database_helpers = DatabaseHelpers.getInstance(context);
+	}
+
+	/**
+	 * Delete every geofence state
+	 *
+	 * @return void
+	 */
+	public void deleteGeofenceStates() {
+		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
+
+		String query = ""
+			+ "DELETE FROM "
+			+ 	this.database_helpers.GEOFENCE_STATES_DATABASE_TABLE;
+
+		try {
+			database.execSQL(query);
+
+		} catch (Exception error) {
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Delete the geofence states of a list of places
+	 *
+	 * @param place_ids		Ids of the places to delete
+	 *
+	 * @return void
+	 */
+	public void deleteGeofenceStatesByPlaceId(ArrayList<String> place_ids) {
+		if (place_ids.isEmpty()) {
+			return;
+		}
+
+		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
+
+		try {
+			database.beginTransactionNonExclusive();
+
+			try {
+				for (int start = 0; start < place_ids.size(); start += DatabaseHelpers.DELETE_CHUNK_SIZE) {
+					int chunk_size = Math.min(DatabaseHelpers.DELETE_CHUNK_SIZE, place_ids.size() - start);
+
+					String query = ""
+						+ "DELETE FROM "
+						+ 	this.database_helpers.GEOFENCE_STATES_DATABASE_TABLE
+						+ " WHERE place_id IN (" + DatabaseHelpers.getPlaceholders(chunk_size) + ")";
+
+					SQLiteStatement statement = database.compileStatement(query);
+					for (int j = 0; j < chunk_size; j++) {
+						statement.bindString(j + 1, place_ids.get(start + j));
+					}
+
+					statement.executeUpdateDelete();
+					statement.close();
+				}
+
+				database.setTransactionSuccessful();
+
+			} finally {
+				database.endTransaction();
+			}
+
+		} catch (Exception error) {
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Return geofence states by place id
+	 *
+	 * @return HashMap<String, String>
+	 */
+	public HashMap<String, String> getGeofenceStates() {
+		SQLiteDatabase database = this.database_helpers.getReadableDatabase();
+
+		HashMap<String, String> results = new HashMap<>();
+		String query = ""
+			+ " SELECT place_id, state "
+			+ " FROM "
+			+	this.database_helpers.GEOFENCE_STATES_DATABASE_TABLE;
+
+		try {
+			Cursor cursor = database.rawQuery(query, null);
+			while (cursor.moveToNext()) {
+				results.put(cursor.getString(0), cursor.getString(1));
+			}
+
+			cursor.close();
+
+		} catch (Exception error) {
+			error.printStackTrace();
+		}
+
+		return results;
+	}
+
+	/**
+	 * Save geofence states in one transaction, replacing any saved state for the same place
+	 *
+	 * @param states		States to save by place id
+	 *
+	 * @return boolean		Indicates if the states were saved
+	 */
+	public boolean saveGeofenceStates(HashMap<String, String> states) {
+		if (states.isEmpty()) {
+			return true;
+		}
+
+		String query = ""
+			+ "INSERT OR REPLACE INTO "
+			+ 	this.database_helpers.GEOFENCE_STATES_DATABASE_TABLE
+			+ "		(place_id, state) "
+			+ " VALUES "
+			+ "		(?, ?) ";
+
+		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
+		SQLiteStatement statement = this.database_helpers.getStatement(query);
+
+		try {
+			synchronized (statement) {
+				database.beginTransactionNonExclusive();
+
+				try {
+					for (Map.Entry<String, String> entry : states.entrySet()) {
+						statement.bindString(1, entry.getKey());
+						statement.bindString(2, (entry.getValue() == null) ? "" : entry.getValue());
+						statement.executeInsert();
+					}
+
+					database.setTransactionSuccessful();
+
+				} finally {
+					statement.clearBindings();
+					database.endTransaction();
+				}
+			}
+
+		} catch (Exception error) {
+			error.printStackTrace();
+			return false;
+		}
+
+		return true;
+	}
+}
@@ -34,6 +34,37 @@ public class Helpers {
 		return "" + (current_time / 1000);
 	}
 
+	/**
+	 * Return a time as a unix time string (in seconds), which is how times are sent to the server
+	 *
+	 * @param milliseconds		Time to format (milliseconds since epoch)
+	 *
+	 * @return String
+	 */
+	public static String formatUnixTime(long milliseconds) {
+		return "" + (milliseconds / 1000.0);
+	}
+
+	/**
+	 * Parse a unix time string into milliseconds since epoch. Values below 1e11 can't be recent
+	 * times in milliseconds, so they are taken to be in seconds (i.e. from formatUnixTime).
+	 *
+	 * @param time			Time to parse
+	 *
+	 * @return long
+	 *
+	 * @throws NumberFormatException
+	 */
+	public static long parseUnixTimeAsMilliseconds(String time) throws NumberFormatException {
+		double value = Double.parseDouble(time);
+
+		if (Math.abs(value) < 1e11) {
+			return Math.round(value * 1000);
+		}
+
+		return Math.round(value);
+	}
+
 	/**
 	 * Return if a manifest permission is granted
 	 *
@@ -0,0 +1,349 @@
+/**
+ * Binary encoding for location batches
+ *
+ * A batch is a header followed by one record per location and an end marker. Ids, coordinates
+ * and the other numbers are written as deltas or fixed-point integers in varints, so nearby
+ * locations cost a few bytes each instead of their decimal text.
+ *
+ * @NOTE
+ * 		Header:
+ * 			"CLB" followed by the format version (one byte each)
+ * 			token, access_token: Strings (varint byte length + 1, 0 = null, then UTF-8 bytes)
+ *
+ * 		Record:
+ * 			id: Varint milliseconds since the previous id (or since epoch for the first), always > 0
+ * 			latitude, longitude: Zigzag varint change in degrees * 1e7 from the previous location
+ * 			hacc: Zigzag varint horizontal accuracy in centimeters
+ * 			spd: Zigzag varint speed in centimeters per second
+ * 			power_flags: Varint, two bits per value (see GPSDatabaseRowObject.POWER_FLAG constants)
+ *
+ * 		End: Varint 0, which can't be an id delta because ids always increase
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.GPSDatabaseRowObject;
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.LocationBatch;
+
+public class LocationBatchCodec {
+	/**
+	 * Content type of an encoded batch
+	 *
+	 * @var String
+	 */
+	public static final String CONTENT_TYPE = "application/vnd.chess.location-batch";
+
+	/**
+	 * Version of the format
+	 *
+	 * @var int
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Scale for coordinates (1e-7 degrees is about a centimeter)
+	 *
+	 * @var double
+	 */
+	protected static final double COORDINATE_SCALE = 1e7;
+
+	/**
+	 * Scale for accuracy and speed (centimeters)
+	 *
+	 * @var double
+	 */
+	protected static final double MEASUREMENT_SCALE = 100;
+
+	/**
+	 * Character set for strings
+	 *
+	 * @var Charset
+	 */
+	protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Stream to write to
+	 *
+	 * @var OutputStream
+	 */
+	protected OutputStream output;
+
+	/**
+	 * Id of the previous location written
+	 *
+	 * @var long
+	 */
+	protected long previous_id = 0;
+
+	/**
+	 * Latitude of the previous location written (in degrees * 1e7)
+	 *
+	 * @var long
+	 */
+	protected long previous_latitude = 0;
+
+	/**
+	 * Longitude of the previous location written (in degrees * 1e7)
+	 *
+	 * @var long
+	 */
+	protected long previous_longitude = 0;
+
+	/**
+	 * Constructor for the object
+	 *
+	 * @param output		Stream to write to
+	 *
+	 * @return void
+	 */
+	public LocationBatchCodec(OutputStream output) {
+		this.output = output;
+	}
+
+	/**
+	 * Write the end of the batch
+	 *
+	 * @return void
+	 *
+	 * @throws IOException
+	 */
+	public void writeEnd() throws IOException {
+		writeVarint(this.output, 0);
+	}
+
+	/**
+	 * Write the start of the batch
+	 *
+	 * @param token				Token for passing data to the server
+	 * @param access_token		Access token the locations were saved with
+	 *
+	 * @return void
+	 *
+	 * @throws IOException
+	 */
+	public void writeHeader(String token, String access_token) throws IOException {
+		this.output.write('C');
+		this.output.write('L');
+		this.output.write('B');
+		this.output.write(FORMAT_VERSION);
+
+		writeString(this.output, token);
+		writeString(this.output, access_token);
+	}
+
+	/**
+	 * Write a location. Locations must be written in id order.
+	 *
+	 * @param location		Location to write
+	 *
+	 * @return void
+	 *
+	 * @throws IOException
+	 */
+	public void writeLocation(GPSDatabaseRowObject location) throws IOException {
+		if (location.getId() <= this.previous_id) {
+			throw new IOException("Location " + location.getId() + " is out of order (previous id = " + this.previous_id + ")");
+		}
+
+		long latitude = Math.round(location.getLatitude() * COORDINATE_SCALE);
+		long longitude = Math.round(location.getLongitude() * COORDINATE_SCALE);
+
+		writeVarint(this.output, location.getId() - this.previous_id);
+		writeVarint(this.output, encodeZigzag(latitude - this.previous_latitude));
+		writeVarint(this.output, encodeZigzag(longitude - this.previous_longitude));
+		writeVarint(this.output, encodeZigzag(Math.round(location.getHorizontalAccuracy() * MEASUREMENT_SCALE)));
+		writeVarint(this.output, encodeZigzag(Math.round(location.getSpeed() * MEASUREMENT_SCALE)));
+		writeVarint(this.output, location.getPowerFlags());
+
+		this.previous_id = location.getId();
+		this.previous_latitude = latitude;
+		this.previous_longitude = longitude;
+	}
+
+	/**
+	 * Decode a batch
+	 *
+	 * @param input		Stream to read from
+	 *
+	 * @return LocationBatch
+	 *
+	 * @throws IOException
+	 */
+	public static LocationBatch decode(InputStream input) throws IOException {
+		if (readByte(input) != 'C' || readByte(input) != 'L' || readByte(input) != 'B') {
+			throw new IOException("Not a location batch");
+		}
+
+		int version = readByte(input);
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported location batch version " + version);
+		}
+
+		String token = readString(input);
+		String access_token = readString(input);
+		LocationBatch batch = new LocationBatch(token, access_token);
+
+		long id = 0;
+		long latitude = 0;
+		long longitude = 0;
+
+		while (true) {
+			long id_delta = readVarint(input);
+			if (id_delta == 0) {
+				break;
+			}
+
+			id += id_delta;
+			latitude += decodeZigzag(readVarint(input));
+			longitude += decodeZigzag(readVarint(input));
+			double horizontal_accuracy = decodeZigzag(readVarint(input)) / MEASUREMENT_SCALE;
+			double speed = decodeZigzag(readVarint(input)) / MEASUREMENT_SCALE;
+			int power_flags = (int) readVarint(input);
+
+			batch.addLocation(new GPSDatabaseRowObject(id, access_token, latitude / COORDINATE_SCALE, longitude / COORDINATE_SCALE, horizontal_accuracy, speed, power_flags));
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Return a zigzag encoded number, so small negative numbers stay small varints
+	 *
+	 * @param value		Number to encode
+	 *
+	 * @return long
+	 */
+	protected static long encodeZigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Return a zigzag decoded number
+	 *
+	 * @param value		Number to decode
+	 *
+	 * @return long
+	 */
+	protected static long decodeZigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Read a byte, failing at the end of the stream
+	 *
+	 * @param input		Stream to read from
+	 *
+	 * @return int
+	 *
+	 * @throws IOException
+	 */
+	protected static int readByte(InputStream input) throws IOException {
+		int value = input.read();
+		if (value < 0) {
+			throw new EOFException("Location batch ended early");
+		}
+
+		return value;
+	}
+
+	/**
+	 * Read a string
+	 *
+	 * @param input		Stream to read from
+	 *
+	 * @return String
+	 *
+	 * @throws IOException
+	 */
+	protected static String readString(InputStream input) throws IOException {
+		long length = readVarint(input);
+		if (length == 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[(int) (length - 1)];
+		int offset = 0;
+
+		while (offset < bytes.length) {
+			int num_read = input.read(bytes, offset, bytes.length - offset);
+			if (num_read < 0) {
+				throw new EOFException("Location batch ended early");
+			}
+
+			offset += num_read;
+		}
+
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * Read an unsigned varint
+	 *
+	 * @param input		Stream to read from
+	 *
+	 * @return long
+	 *
+	 * @throws IOException
+	 */
+	protected static long readVarint(InputStream input) throws IOException {
+		long value = 0;
+
+		for (int shift = 0; shift < 64; shift += 7) {
+			int current_byte = readByte(input);
+			value |= ((long) (current_byte & 0x7f)) << shift;
+
+			if ((current_byte & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IOException("Varint is too long");
+	}
+
+	/**
+	 * Write a string
+	 *
+	 * @param output		Stream to write to
+	 * @param value			String to write (may be null)
+	 *
+	 * @return void
+	 *
+	 * @throws IOException
+	 */
+	protected static void writeString(OutputStream output, String value) throws IOException {
+		if (value == null) {
+			writeVarint(output, 0);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(UTF_8);
+		writeVarint(output, bytes.length + 1);
+		output.write(bytes);
+	}
+
+	/**
+	 * Write an unsigned varint (7 bits per byte, least significant first)
+	 *
+	 * @param output		Stream to write to
+	 * @param value			Number to write
+	 *
+	 * @return void
+	 *
+	 * @throws IOException
+	 */
+	protected static void writeVarint(OutputStream output, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			output.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+
+		output.write((int) value);
+	}
+}
@@ -0,0 +1,256 @@
+/**
+ * Ring buffer of location fixes
+ *
+ * Fixes are kept in parallel primitive arrays so they stay numeric from the moment they are
+ * received until they are written to the database, without a Location object or string per fix.
+ * Indexes passed to the getters are relative to the oldest fix still in the buffer.
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
+
+import android.location.Location;
+
+public class LocationBuffer {
+	/**
+	 * Latitudes of fixes
+	 *
+	 * @var double[]
+	 */
+	protected double[] latitudes;
+
+	/**
+	 * Longitudes of fixes
+	 *
+	 * @var double[]
+	 */
+	protected double[] longitudes;
+
+	/**
+	 * Horizontal accuracies of fixes (in meters)
+	 *
+	 * @var float[]
+	 */
+	protected float[] accuracies;
+
+	/**
+	 * Speeds of fixes (in meters per second)
+	 *
+	 * @var float[]
+	 */
+	protected float[] speeds;
+
+	/**
+	 * Times of fixes (milliseconds since epoch)
+	 *
+	 * @var long[]
+	 */
+	protected long[] times;
+
+	/**
+	 * Position of the oldest fix in the arrays
+	 *
+	 * @var int
+	 */
+	protected int start = 0;
+
+	/**
+	 * Number of fixes in the buffer
+	 *
+	 * @var int
+	 */
+	protected int count = 0;
+
+	/**
+	 * Construct the object
+	 *
+	 * @param capacity		Number of fixes to keep before the oldest is overwritten
+	 *
+	 * @return void
+	 */
+	public LocationBuffer(int capacity) {
+		this.allocate(Math.max(capacity, 1));
+	}
+
+	/**
+	 * Add a fix, overwriting the oldest fix if the buffer is full
+	 *
+	 * @param latitude		Latitude of fix
+	 * @param longitude		Longitude of fix
+	 * @param accuracy		Horizontal accuracy of fix (in meters)
+	 * @param speed			Speed of fix (in meters per second)
+	 * @param time			Time of fix (milliseconds since epoch)
+	 *
+	 * @return int			Index of the fix that was added
+	 */
+	public int add(double latitude, double longitude, float accuracy, float speed, long time) {
+		int capacity = this.latitudes.length;
+		int position;
+
+		if (this.count < capacity) {
+			position = (this.start + this.count) % capacity;
+			this.count++;
+
+		} else {
+			position = this.start;
+			this.start = (this.start + 1) % capacity;
+		}
+
+		this.latitudes[position] = latitude;
+		this.longitudes[position] = longitude;
+		this.accuracies[position] = accuracy;
+		this.speeds[position] = speed;
+		this.times[position] = time;
+
+		return this.count - 1;
+	}
+
+	/**
+	 * Add a fix from a Location, overwriting the oldest fix if the buffer is full
+	 *
+	 * @param location		Location to add
+	 *
+	 * @return int			Index of the fix that was added
+	 */
+	public int add(Location location) {
+		return this.add(location.getLatitude(), location.getLongitude(), location.getAccuracy(), location.getSpeed(), location.getTime());
+	}
+
+	/**
+	 * Allocate the arrays
+	 *
+	 * @param capacity		Number of fixes to allocate
+	 *
+	 * @return void
+	 */
+	protected void allocate(int capacity) {
+		this.latitudes = new double[capacity];
+		this.longitudes = new double[capacity];
+		this.accuracies = new float[capacity];
+		this.speeds = new float[capacity];
+		this.times = new long[capacity];
+	}
+
+	/**
+	 * Remove every fix
+	 *
+	 * @return void
+	 */
+	public void clear() {
+		this.start = 0;
+		this.count = 0;
+	}
+
+	/**
+	 * Grow the buffer (keeping its fixes) so it can hold at least the given number of fixes
+	 *
+	 * @param capacity		Number of fixes needed
+	 *
+	 * @return void
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity <= this.latitudes.length) {
+			return;
+		}
+
+		double[] latitudes = this.latitudes;
+		double[] longitudes = this.longitudes;
+		float[] accuracies = this.accuracies;
+		float[] speeds = this.speeds;
+		long[] times = this.times;
+		int old_capacity = latitudes.length;
+
+		this.allocate(capacity);
+
+		for (int i = 0; i < this.count; i++) {
+			int position = (this.start + i) % old_capacity;
+
+			this.latitudes[i] = latitudes[position];
+			this.longitudes[i] = longitudes[position];
+			this.accuracies[i] = accuracies[position];
+			this.speeds[i] = speeds[position];
+			this.times[i] = times[position];
+		}
+
+		this.start = 0;
+	}
+
+	/**
+	 * Return horizontal accuracy of a fix (in meters)
+	 *
+	 * @param index		Index of fix
+	 *
+	 * @return float
+	 */
+	public float getAccuracy(int index) {
+		return this.accuracies[this.getPosition(index)];
+	}
+
+	/**
+	 * Return the number of fixes in the buffer
+	 *
+	 * @return int
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Return latitude of a fix
+	 *
+	 * @param index		Index of fix
+	 *
+	 * @return double
+	 */
+	public double getLatitude(int index) {
+		return this.latitudes[this.getPosition(index)];
+	}
+
+	/**
+	 * Return longitude of a fix
+	 *
+	 * @param index		Index of fix
+	 *
+	 * @return double
+	 */
+	public double getLongitude(int index) {
+		return this.longitudes[this.getPosition(index)];
+	}
+
+	/**
+	 * Return position of a fix in the arrays
+	 *
+	 * @param index		Index of fix
+	 *
+	 * @return int
+	 */
+	protected int getPosition(int index) {
+		if (index < 0 || index >= this.count) {
+			throw new IndexOutOfBoundsException("Index " + index + " is outside of the buffer (count = " + this.count + ")");
+		}
+
+		return (this.start + index) % this.latitudes.length;
+	}
+
+	/**
+	 * Return speed of a fix (in meters per second)
+	 *
+	 * @param index		Index of fix
+	 *
+	 * @return float
+	 */
+	public float getSpeed(int index) {
+		return this.speeds[this.getPosition(index)];
+	}
+
+	/**
+	 * Return time of a fix (milliseconds since epoch)
+	 *
+	 * @param index		Index of fix
+	 *
+	 * @return long
+	 */
+	public long getTime(int index) {
+		return this.times[this.getPosition(index)];
+	}
+}
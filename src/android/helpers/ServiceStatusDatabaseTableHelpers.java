@@ -9,6 +9,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
 import android.util.Log;
 
@@ -37,7 +38,7 @@ public class ServiceStatusDatabaseTableHelpers {
 	 * @return void
 	 */
 	public ServiceStatusDatabaseTableHelpers(Context context) {
-		this.database_helpers = new DatabaseHelpers(context);
+		this.database_helpers = DatabaseHelpers.getInstance(context);
 	}
 
 	/**
@@ -59,7 +60,6 @@ public class ServiceStatusDatabaseTableHelpers {
 
 		try {
 			database.execSQL(query, args);
-			database.close();
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -92,7 +92,6 @@ public class ServiceStatusDatabaseTableHelpers {
 			}
 
 			cursor.close();
-			database.close();
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -110,17 +109,13 @@ public class ServiceStatusDatabaseTableHelpers {
 	 * @return void
 	 */
 	public void insertServiceStatus(String service, String status) {
-		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
-
 		String unix_time_string = Helpers.getUnixTimeAsString();
 		Helpers.log("New event time: " + unix_time_string);
 
 		String query1 = ""
 			+ " DELETE FROM "
 			+	this.database_helpers.SERVICE_STATUS_DATABASE_TABLE
-			+ " WHERE service = ?; ";
-
-		String[] args1 = new String[] { service };
+			+ " WHERE service = ?";
 
 		String query2 = ""
 			+ " INSERT INTO "
@@ -129,12 +124,22 @@ public class ServiceStatusDatabaseTableHelpers {
 			+ " VALUES "
 			+ "		(?, ?, ?) ";
 
-		String[] args2 = new String[] { service, status, unix_time_string };
-
 		try {
-			database.execSQL(query1, args1);
-			database.execSQL(query2, args2);
-			database.close();
+			SQLiteStatement statement1 = this.database_helpers.getStatement(query1);
+			synchronized (statement1) {
+				DatabaseHelpers.bindStringOrNull(statement1, 1, service);
+				statement1.executeUpdateDelete();
+				statement1.clearBindings();
+			}
+
+			SQLiteStatement statement2 = this.database_helpers.getStatement(query2);
+			synchronized (statement2) {
+				DatabaseHelpers.bindStringOrNull(statement2, 1, service);
+				DatabaseHelpers.bindStringOrNull(statement2, 2, status);
+				statement2.bindString(3, unix_time_string);
+				statement2.executeInsert();
+				statement2.clearBindings();
+			}
 
 		} catch (Exception error) {
 			error.printStackTrace();
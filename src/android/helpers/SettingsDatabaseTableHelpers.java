@@ -9,6 +9,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
 import android.util.Log;
 
@@ -20,6 +21,7 @@ import java.util.HashMap;
 import java.util.Set;
 
 import edu.wisc.chess.plugins.chesslocationmonitoring.models.SettingsDatabaseRowObject;
+import edu.wisc.chess.plugins.chesslocationmonitoring.services.LocationService;
 
 public class SettingsDatabaseTableHelpers {
 	/**
@@ -37,7 +39,7 @@ public class SettingsDatabaseTableHelpers {
 	 * @return void
 	 */
 	public SettingsDatabaseTableHelpers(Context context) {
-		this.database_helpers = new DatabaseHelpers(context);
+		this.database_helpers = DatabaseHelpers.getInstance(context);
 	}
 
 	/**
@@ -54,11 +56,13 @@ public class SettingsDatabaseTableHelpers {
 
 		try {
 			database.execSQL(query);
-			database.close();
 
 		} catch (Exception error) {
 			error.printStackTrace();
 		}
+
+		GeofenceManager.invalidate();
+		LocationService.invalidateSamplingTier();
 	}
 
 	/**
@@ -87,7 +91,6 @@ public class SettingsDatabaseTableHelpers {
 			}
 
 			cursor.close();
-			database.close();
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -120,7 +123,6 @@ public class SettingsDatabaseTableHelpers {
 			}
 
 			cursor.close();
-			database.close();
 
 		} catch (Exception error) {
 			error.printStackTrace();
@@ -138,14 +140,10 @@ public class SettingsDatabaseTableHelpers {
 	 * @return void
 	 */
 	public void insertSetting(String key, String value) {
-		SQLiteDatabase database = this.database_helpers.getWritableDatabase();
-
 		String query1 = ""
 			+ " DELETE FROM "
 			+	this.database_helpers.SETTINGS_DATABASE_TABLE
-			+ " WHERE key = ?; ";
-
-		String[] args1 = new String[] { key };
+			+ " WHERE key = ?";
 
 		String query2 = ""
 			+ " INSERT INTO "
@@ -154,16 +152,30 @@ public class SettingsDatabaseTableHelpers {
 			+ " VALUES "
 			+ "		(?, ?) ";
 
-		String[] args2 = new String[] { key, value };
-
 		try {
-			database.execSQL(query1, args1);
-			database.execSQL(query2, args2);
-			database.close();
+			SQLiteStatement statement1 = this.database_helpers.getStatement(query1);
+			synchronized (statement1) {
+				DatabaseHelpers.bindStringOrNull(statement1, 1, key);
+				statement1.executeUpdateDelete();
+				statement1.clearBindings();
+			}
+
+			SQLiteStatement statement2 = this.database_helpers.getStatement(query2);
+			synchronized (statement2) {
+				DatabaseHelpers.bindStringOrNull(statement2, 1, key);
+				DatabaseHelpers.bindStringOrNull(statement2, 2, value);
+				statement2.executeInsert();
+				statement2.clearBindings();
+			}
 
 		} catch (Exception error) {
 			error.printStackTrace();
 		}
+
+		// The shared geofence manager was built from the old geofences
+		if ("geofence_json_string".equals(key)) {
+			GeofenceManager.invalidate();
+		}
 	}
 
 	/**
@@ -0,0 +1,250 @@
+/**
+ * Policy for when to upload locations and how many to send at once
+ *
+ * The batch size doubles while there is a backlog and the server answers quickly, and halves
+ * when requests fail or are slow. Locations are sent as soon as a full batch is waiting, and
+ * otherwise once the coalescing window has passed since the last upload.
+ *
+ * Uploads also depend on the radio and power state. On an unmetered network or while charging,
+ * backlogs are drained with several batches in flight. On a metered network, locations wait for
+ * a larger backlog or a longer window and go one batch at a time, so the radio wakes up less
+ * often. Nothing is sent without a network or while the device is dozing. Urgent uploads
+ * (i.e. forced sends) skip the waiting whenever there is a network.
+ *
+ * The policy is shared by the process, so it carries over between location deliveries.
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.helpers;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.GPSDatabaseRowObject;
+
+public class UploadBatchPolicy {
+	/**
+	 * Smallest batch size
+	 *
+	 * @var int
+	 */
+	public static final int MIN_BATCH_SIZE = 30;
+
+	/**
+	 * Largest batch size
+	 *
+	 * @var int
+	 */
+	public static final int MAX_BATCH_SIZE = 1000;
+
+	/**
+	 * Responses faster than this let the batch size grow (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long FAST_RESPONSE_MILLISECONDS = 2000;
+
+	/**
+	 * Responses slower than this shrink the batch size (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long SLOW_RESPONSE_MILLISECONDS = 10000;
+
+	/**
+	 * Time to wait after an upload before sending less than a full batch (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long COALESCE_WINDOW_MILLISECONDS = 5 * 60 * 1000;
+
+	/**
+	 * Time to wait after an upload before sending less than a metered backlog (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long METERED_COALESCE_WINDOW_MILLISECONDS = 30 * 60 * 1000;
+
+	/**
+	 * Number of batches that must be waiting before a metered upload is made without waiting
+	 *
+	 * @var int
+	 */
+	protected static final int METERED_BACKLOG_BATCHES = 4;
+
+	/**
+	 * Instance shared by the process
+	 *
+	 * @var UploadBatchPolicy
+	 */
+	protected static UploadBatchPolicy instance = null;
+
+	/**
+	 * Number of locations to send per request
+	 *
+	 * @var int
+	 */
+	protected int batch_size = MIN_BATCH_SIZE;
+
+	/**
+	 * Time the last upload was started (milliseconds since epoch)
+	 *
+	 * @var long
+	 */
+	protected long last_send_time = 0;
+
+	/**
+	 * Indicates if there was a network the last time conditions were updated
+	 *
+	 * @var boolean
+	 */
+	protected boolean is_connected = true;
+
+	/**
+	 * Indicates if the network was unmetered the last time conditions were updated
+	 *
+	 * @var boolean
+	 */
+	protected boolean is_unmetered = true;
+
+	/**
+	 * Indicates if the device was charging the last time conditions were updated
+	 *
+	 * @var boolean
+	 */
+	protected boolean is_charging = false;
+
+	/**
+	 * Indicates if the device was dozing the last time conditions were updated
+	 *
+	 * @var boolean
+	 */
+	protected boolean is_device_idle = false;
+
+	/**
+	 * Return the instance shared by the process
+	 *
+	 * @return UploadBatchPolicy
+	 */
+	public static synchronized UploadBatchPolicy getInstance() {
+		if (instance == null) {
+			instance = new UploadBatchPolicy();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Return number of locations to send per request
+	 *
+	 * @return int
+	 */
+	public synchronized int getBatchSize() {
+		return this.batch_size;
+	}
+
+	/**
+	 * Return if a backlog can be drained with several batches in flight
+	 *
+	 * @return boolean
+	 */
+	public synchronized boolean isBulkDrainAllowed() {
+		return this.is_connected && !this.is_device_idle && (this.is_unmetered || this.is_charging);
+	}
+
+	/**
+	 * Record that an upload was started
+	 *
+	 * @return void
+	 */
+	public synchronized void onSendStarted() {
+		this.last_send_time = System.currentTimeMillis();
+	}
+
+	/**
+	 * Adjust the batch size after an upload has finished
+	 *
+	 * @param is_successful				Indicates if the server accepted the batch
+	 * @param duration_milliseconds		Time from sending the request to receiving the response
+	 * @param num_remaining				Number of locations still waiting to be uploaded
+	 *
+	 * @return void
+	 */
+	public synchronized void onSendFinished(boolean is_successful, long duration_milliseconds, long num_remaining) {
+		int old_batch_size = this.batch_size;
+
+		if (!is_successful || duration_milliseconds > SLOW_RESPONSE_MILLISECONDS) {
+			this.batch_size = Math.max(this.batch_size / 2, MIN_BATCH_SIZE);
+
+		} else if (duration_milliseconds < FAST_RESPONSE_MILLISECONDS && num_remaining > this.batch_size) {
+			this.batch_size = Math.min(this.batch_size * 2, MAX_BATCH_SIZE);
+		}
+
+		if (this.batch_size != old_batch_size) {
+			Helpers.log("UploadBatchPolicy.onSendFinished: Batch size changed from " + old_batch_size + " to " + this.batch_size + " (successful = " + is_successful + ", duration = " + duration_milliseconds + " ms, remaining = " + num_remaining + ")");
+		}
+	}
+
+	/**
+	 * Return if locations should be uploaded now
+	 *
+	 * @param num_locations		Number of locations waiting to be uploaded
+	 * @param force_send		Indicates if any waiting locations should be sent now
+	 *
+	 * @return boolean
+	 */
+	public synchronized boolean shouldSend(long num_locations, boolean force_send) {
+		if (num_locations <= 0 || !this.is_connected) {
+			return false;
+		}
+
+		if (force_send) {
+			return true;
+		}
+
+		if (this.is_device_idle) {
+			return false;
+		}
+
+		long time_since_last_send = System.currentTimeMillis() - this.last_send_time;
+
+		if (this.is_unmetered || this.is_charging) {
+			return num_locations >= this.batch_size || time_since_last_send >= COALESCE_WINDOW_MILLISECONDS;
+		}
+
+		return num_locations >= Math.min(this.batch_size * METERED_BACKLOG_BATCHES, MAX_BATCH_SIZE) || time_since_last_send >= METERED_COALESCE_WINDOW_MILLISECONDS;
+	}
+
+	/**
+	 * Read the current network and power state
+	 *
+	 * @param context		Context to use
+	 *
+	 * @return void
+	 */
+	public void updateConditions(Context context) {
+		boolean is_connected = true;
+		boolean is_unmetered = true;
+
+		try {
+			ConnectivityManager connectivity_manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo network_info = connectivity_manager.getActiveNetworkInfo();
+
+			is_connected = network_info != null && network_info.isConnected();
+			is_unmetered = !connectivity_manager.isActiveNetworkMetered();
+
+		} catch (Exception error) {
+			error.printStackTrace();
+		}
+
+		int power_flags = GPSDatabaseTableHelpers.getPowerFlags(context);
+
+		synchronized (this) {
+			this.is_connected = is_connected;
+			this.is_unmetered = is_unmetered;
+			this.is_charging = GPSDatabaseRowObject.getPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_CHARGING) == 1;
+			this.is_device_idle = GPSDatabaseRowObject.getPowerFlag(power_flags, GPSDatabaseRowObject.POWER_FLAG_DEVICE_IDLE_MODE) == 1;
+		}
+	}
+}
@@ -5,9 +5,7 @@
  */
 package edu.wisc.chess.plugins.chesslocationmonitoring.models;
 
-import android.location.Location;
-
-import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.Helpers;
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.DistanceHelpers;
 
 public class CircularGeofence extends Geofence {
 	/**
@@ -24,6 +22,55 @@ public class CircularGeofence extends Geofence {
 	 */
 	double radius;
 
+	/**
+	 * Relative error allowed for the approximate distance before the exact distance is used
+	 *
+	 * @var double
+	 */
+	protected static final double APPROXIMATE_DISTANCE_TOLERANCE = 0.02;
+
+	/**
+	 * Largest radius (in meters) where the approximate distance is accurate enough to use
+	 *
+	 * @var double
+	 */
+	protected static final double MAX_APPROXIMATE_RADIUS = 10000;
+
+	/**
+	 * Latitude (in degrees) beyond which the approximate distance is never used
+	 *
+	 * @var double
+	 */
+	protected static final double MAX_APPROXIMATE_LATITUDE = 80;
+
+	/**
+	 * Indicates if the approximate distance is accurate enough to use for this geofence
+	 *
+	 * @var boolean
+	 */
+	protected boolean is_approximate_distance_allowed;
+
+	/**
+	 * Cosine of the center's latitude
+	 *
+	 * @var double
+	 */
+	protected double cos_center_latitude;
+
+	/**
+	 * Approximate distance below which a point is certainly within the geofence (in meters)
+	 *
+	 * @var double
+	 */
+	protected double certainly_within_distance;
+
+	/**
+	 * Approximate distance above which a point is certainly outside of the geofence (in meters)
+	 *
+	 * @var double
+	 */
+	protected double certainly_outside_distance;
+
 	/**
 	 * Construct geofence
 	 *
@@ -38,27 +85,149 @@ public class CircularGeofence extends Geofence {
 
 		this.center = center;
 		this.radius = radius;
+
+		this.computeBoundingBox();
+
+		this.cos_center_latitude = Math.cos(Math.toRadians(center.latitude));
+
+		this.is_approximate_distance_allowed = (this.radius <= MAX_APPROXIMATE_RADIUS && Math.abs(center.latitude) <= MAX_APPROXIMATE_LATITUDE);
+
+		// Outside of the window between these distances the approximation can't change the result
+		if (this.is_approximate_distance_allowed) {
+			this.certainly_within_distance = this.radius * (1 - APPROXIMATE_DISTANCE_TOLERANCE) - 1;
+			this.certainly_outside_distance = this.radius * (1 + APPROXIMATE_DISTANCE_TOLERANCE) + 1;
+
+		} else {
+			this.certainly_within_distance = -1;
+			this.certainly_outside_distance = Double.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Compute the bounding box that encloses the circle
+	 *
+	 * @return void
+	 */
+	protected void computeBoundingBox() {
+		double radius = Math.max(this.radius, 0);
+		double latitude_delta = radius / MIN_METERS_PER_DEGREE_LATITUDE;
+
+		this.min_latitude = Math.max(this.center.latitude - latitude_delta, -90);
+		this.max_latitude = Math.min(this.center.latitude + latitude_delta, 90);
+
+		// Longitude degrees shrink towards the poles, so use the edge furthest from the equator
+		double widest_latitude = Math.max(Math.abs(this.min_latitude), Math.abs(this.max_latitude));
+		double cos_latitude = Math.cos(Math.toRadians(widest_latitude));
+
+		double longitude_delta = (cos_latitude > 0) ? (latitude_delta / cos_latitude) : 360;
+		if (longitude_delta >= 180 || this.center.longitude - longitude_delta < -180 || this.center.longitude + longitude_delta > 180) {
+			this.min_longitude = -180;
+			this.max_longitude = 180;
+			return;
+		}
+
+		this.min_longitude = this.center.longitude - longitude_delta;
+		this.max_longitude = this.center.longitude + longitude_delta;
 	}
 
 	/**
 	 * Check if point is within the geofence
 	 *
-	 * @param gps_point Point to check
+	 * Points outside of the bounding box are rejected first, then an equirectangular approximation
+	 * decides points that are clearly inside or outside. Only points near the boundary pay for the
+	 * exact ellipsoidal distance.
+	 *
+	 * @param latitude		Latitude of point to check
+	 * @param longitude		Longitude of point to check
 	 *
 	 * @return boolean
 	 */
-	public boolean isPointWithinGeofence(Location gps_point) {
+	public boolean isPointWithinGeofence(double latitude, double longitude) {
 		if (this.radius <= 0) {
 			return false;
 		}
 
-		float[] results = new float[3];
-		Location.distanceBetween(gps_point.getLatitude(), gps_point.getLongitude(), center.latitude, center.longitude, results);
+		if (latitude < this.min_latitude || latitude > this.max_latitude || longitude < this.min_longitude || longitude > this.max_longitude) {
+			return false;
+		}
 
-		if (results[0] < this.radius) {
+		double approximate_distance = DistanceHelpers.getEquirectangularDistance(this.center.latitude, this.center.longitude, latitude, longitude, this.cos_center_latitude);
+		if (approximate_distance < this.certainly_within_distance) {
 			return true;
 		}
 
-		return false;
+		if (approximate_distance > this.certainly_outside_distance) {
+			return false;
+		}
+
+		float distance = (float) DistanceHelpers.getEllipsoidalDistance(latitude, longitude, this.center.latitude, this.center.longitude);
+		return distance < this.radius;
+	}
+
+	/**
+	 * Classify a fix as inside, outside or uncertain (see the POINT constants), allowing for its
+	 * accuracy
+	 *
+	 * A fix is inside when its accuracy circle is within the geofence, and outside when the
+	 * circle is past the boundary by the hysteresis. The accuracy used for inside is capped at
+	 * half the radius, so a fix near the center of a geofence smaller than its accuracy still
+	 * counts as inside. The bounding box and the equirectangular approximation decide most fixes
+	 * before the exact ellipsoidal distance is needed.
+	 *
+	 * @param latitude		Latitude of fix
+	 * @param longitude		Longitude of fix
+	 * @param accuracy		Horizontal accuracy of fix (in meters)
+	 * @param hysteresis	Extra distance (in meters) past the boundary before the fix is outside
+	 *
+	 * @return int
+	 */
+	public int classifyPoint(double latitude, double longitude, double accuracy, double hysteresis) {
+		if (this.radius <= 0) {
+			return POINT_OUTSIDE;
+		}
+
+		double inside_distance = this.radius - Math.min(Math.max(accuracy, 0), this.radius / 2);
+		double outside_distance = this.radius + Math.max(accuracy, 0) + Math.max(hysteresis, 0);
+
+		if (!this.isPointWithinBoundingBox(latitude, longitude, outside_distance - this.radius)) {
+			return POINT_OUTSIDE;
+		}
+
+		if (this.is_approximate_distance_allowed) {
+			double approximate_distance = DistanceHelpers.getEquirectangularDistance(this.center.latitude, this.center.longitude, latitude, longitude, this.cos_center_latitude);
+
+			if (approximate_distance < inside_distance * (1 - APPROXIMATE_DISTANCE_TOLERANCE) - 1) {
+				return POINT_INSIDE;
+			}
+
+			if (approximate_distance > outside_distance * (1 + APPROXIMATE_DISTANCE_TOLERANCE) + 1) {
+				return POINT_OUTSIDE;
+			}
+
+			if (approximate_distance > inside_distance * (1 + APPROXIMATE_DISTANCE_TOLERANCE) + 1 && approximate_distance < outside_distance * (1 - APPROXIMATE_DISTANCE_TOLERANCE) - 1) {
+				return POINT_UNCERTAIN;
+			}
+		}
+
+		double distance = DistanceHelpers.getEllipsoidalDistance(latitude, longitude, this.center.latitude, this.center.longitude);
+		if (distance < inside_distance) {
+			return POINT_INSIDE;
+		}
+
+		return (distance > outside_distance) ? POINT_OUTSIDE : POINT_UNCERTAIN;
+	}
+
+	/**
+	 * Return signed distance from a point to the boundary of the geofence (in meters), which is
+	 * negative when the point is within the geofence
+	 *
+	 * @param latitude		Latitude of point
+	 * @param longitude		Longitude of point
+	 *
+	 * @return double
+	 */
+	public double getDistanceToBoundary(double latitude, double longitude) {
+		double distance = DistanceHelpers.getEllipsoidalDistance(latitude, longitude, this.center.latitude, this.center.longitude);
+		return distance - Math.max(this.radius, 0);
 	}
 }
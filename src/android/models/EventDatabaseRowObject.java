@@ -11,6 +11,8 @@ import org.json.JSONObject;
 
 import android.database.Cursor;
 
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.DatabaseHelpers;
+
 public class EventDatabaseRowObject {
 	/**
 	 * Id of row
@@ -20,7 +22,14 @@ public class EventDatabaseRowObject {
 	protected String id;
 
 	/**
-	 * Access token for user
+	 * Id of the access token for user in the access tokens table (0 for none)
+	 *
+	 * @var long
+	 */
+	protected long access_token_id = 0;
+
+	/**
+	 * Access token for user (resolved from access_token_id when first needed)
 	 *
 	 * @var String
 	 */
@@ -88,7 +97,10 @@ public class EventDatabaseRowObject {
 	 */
 	public void buildFromCursor(Cursor cursor) throws JSONException {
 		this.id = cursor.getString(cursor.getColumnIndex("id"));
-		this.access_token = cursor.getString(cursor.getColumnIndex("access_token"));
+		int access_token_id_index = cursor.getColumnIndex("access_token_id");
+
+		this.access_token_id = (cursor.isNull(access_token_id_index)) ? 0 : cursor.getLong(access_token_id_index);
+		this.access_token = null;
 		this.service = cursor.getString(cursor.getColumnIndex("service"));
 		this.action = cursor.getString(cursor.getColumnIndex("action"));
 		this.create_date = cursor.getString(cursor.getColumnIndex("create_date"));
@@ -96,6 +108,19 @@ public class EventDatabaseRowObject {
 		this.objects = new JSONObject(cursor.getString(cursor.getColumnIndex("objects")));
 	}
 
+	/**
+	 * Return access token for user, resolving it from its id the first time
+	 *
+	 * @return String
+	 */
+	public String getAccessToken() {
+		if (this.access_token == null && this.access_token_id != 0) {
+			this.access_token = DatabaseHelpers.resolveAccessToken(this.access_token_id);
+		}
+
+		return this.access_token;
+	}
+
 	/**
 	 * Return as a JSON object
 	 *
@@ -107,7 +132,7 @@ public class EventDatabaseRowObject {
 		JSONObject data = new JSONObject();
 
 		data.put("client_database_id", this.id);
-		data.put("access_token", this.access_token);
+		data.put("access_token", this.getAccessToken());
 		data.put("service", this.service);
 		data.put("action", this.action);
 		data.put("objects", this.objects);
@@ -6,20 +6,68 @@
 package edu.wisc.chess.plugins.chesslocationmonitoring.models;
 
 import android.database.Cursor;
+import android.util.JsonWriter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.DatabaseHelpers;
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.Helpers;
+
 public class GPSDatabaseRowObject {
 	/**
-	 * Latitude of point
+	 * Position of "Is app in Device Idle Mode" in the power flags
 	 *
-	 * @var String
+	 * @var int
+	 */
+	public static final int POWER_FLAG_DEVICE_IDLE_MODE = 0;
+
+	/**
+	 * Position of "Is app interactive" in the power flags
+	 *
+	 * @var int
+	 */
+	public static final int POWER_FLAG_INTERACTIVE = 2;
+
+	/**
+	 * Position of "Is device in Power Saving mode" in the power flags
+	 *
+	 * @var int
+	 */
+	public static final int POWER_FLAG_POWER_SAVE_MODE = 4;
+
+	/**
+	 * Position of "Is app ignoring battery optimizations" in the power flags
+	 *
+	 * @var int
+	 */
+	public static final int POWER_FLAG_IGNORING_BATTERY_OPTIMIZATIONS = 6;
+
+	/**
+	 * Position of "Is device charging" in the power flags
+	 *
+	 * @var int
+	 */
+	public static final int POWER_FLAG_CHARGING = 8;
+
+	/**
+	 * Identifier of row, which is also its create date (milliseconds since epoch)
+	 *
+	 * @var long
+	 */
+	protected long id;
+
+	/**
+	 * Id of the access token of user in the access tokens table (0 for none)
+	 *
+	 * @var long
 	 */
-	protected String id;
+	protected long access_token_id = 0;
 
 	/**
-	 * Access token of user
+	 * Access token of user (resolved from access_token_id when first needed)
 	 *
 	 * @var String
 	 */
@@ -28,30 +76,37 @@ public class GPSDatabaseRowObject {
 	/**
 	 * Latitude of point
 	 *
-	 * @var String
+	 * @var double
 	 */
-	protected String latitude;
+	protected double latitude;
 
 	/**
 	 * Longitude of point
 	 *
-	 * @var String
+	 * @var double
 	 */
-	protected String longitude;
+	protected double longitude;
 
 	/**
-	 * Other data to save
+	 * Horizontal accuracy (in meters)
 	 *
-	 * @var String
+	 * @var double
 	 */
-	protected String other_data;
+	protected double horizontal_accuracy;
 
 	/**
-	 * Create date
+	 * Speed (in meters per second)
 	 *
-	 * @var String
+	 * @var double
+	 */
+	protected double speed;
+
+	/**
+	 * Power state when the point was saved (see the POWER_FLAG constants)
+	 *
+	 * @var int
 	 */
-	protected String create_date;
+	protected int power_flags;
 
 	/**
 	 * Constructor for object
@@ -71,6 +126,29 @@ public class GPSDatabaseRowObject {
 		this.buildFromCursor(cursor);
 	}
 
+	/**
+	 * Constructor for object
+	 *
+	 * @param id					Identifier of row (milliseconds since epoch)
+	 * @param access_token			Access token of user
+	 * @param latitude				Latitude of point
+	 * @param longitude				Longitude of point
+	 * @param horizontal_accuracy	Horizontal accuracy (in meters)
+	 * @param speed					Speed (in meters per second)
+	 * @param power_flags			Power state when the point was saved
+	 *
+	 * @return void
+	 */
+	public GPSDatabaseRowObject(long id, String access_token, double latitude, double longitude, double horizontal_accuracy, double speed, int power_flags) {
+		this.id = id;
+		this.access_token = access_token;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.horizontal_accuracy = horizontal_accuracy;
+		this.speed = speed;
+		this.power_flags = power_flags;
+	}
+
 	/**
 	 * Build from a database cursor
 	 *
@@ -79,32 +157,144 @@ public class GPSDatabaseRowObject {
 	 * @return void
 	 */
 	public void buildFromCursor(Cursor cursor) {
-		this.id = cursor.getString(cursor.getColumnIndex("id"));
-		this.access_token = cursor.getString(cursor.getColumnIndex("access_token"));
-		this.latitude = cursor.getString(cursor.getColumnIndex("latitude"));
-		this.longitude = cursor.getString(cursor.getColumnIndex("longitude"));
-		this.other_data = cursor.getString(cursor.getColumnIndex("other_data"));
-		this.create_date = cursor.getString(cursor.getColumnIndex("create_date"));
+		// Upload queries leave out the access token, since a batch shares one
+		int access_token_id_index = cursor.getColumnIndex("access_token_id");
+
+		this.id = cursor.getLong(cursor.getColumnIndex("id"));
+		this.access_token_id = (access_token_id_index >= 0 && !cursor.isNull(access_token_id_index)) ? cursor.getLong(access_token_id_index) : 0;
+		this.access_token = null;
+		this.latitude = cursor.getDouble(cursor.getColumnIndex("latitude"));
+		this.longitude = cursor.getDouble(cursor.getColumnIndex("longitude"));
+		this.horizontal_accuracy = cursor.getDouble(cursor.getColumnIndex("horizontal_accuracy"));
+		this.speed = cursor.getDouble(cursor.getColumnIndex("speed"));
+		this.power_flags = cursor.getInt(cursor.getColumnIndex("power_flags"));
 	}
 
 	/**
-	 * Return latitude
+	 * Return a tri-state value (-1 = not known, 0 = false, 1 = true) from power flags
+	 *
+	 * @param power_flags		Power flags to read
+	 * @param flag				Position of the value (see the POWER_FLAG constants)
+	 *
+	 * @return int
+	 */
+	public static int getPowerFlag(int power_flags, int flag) {
+		return ((power_flags >> flag) & 3) - 1;
+	}
+
+	/**
+	 * Set a tri-state value (-1 = not known, 0 = false, 1 = true) in power flags. Each value uses
+	 * two bits, so flags that were never set read as "not known".
+	 *
+	 * @param power_flags		Power flags to update
+	 * @param flag				Position of the value (see the POWER_FLAG constants)
+	 * @param value				Value to set
+	 *
+	 * @return int				Updated power flags
+	 */
+	public static int setPowerFlag(int power_flags, int flag, int value) {
+		return (power_flags & ~(3 << flag)) | ((value + 1) << flag);
+	}
+
+	/**
+	 * Return access token of user, resolving it from its id the first time
 	 *
 	 * @return String
 	 */
-	public String getLatitude() {
+	public String getAccessToken() {
+		if (this.access_token == null && this.access_token_id != 0) {
+			this.access_token = DatabaseHelpers.resolveAccessToken(this.access_token_id);
+		}
+
+		return this.access_token;
+	}
+
+	/**
+	 * Return create date (milliseconds since epoch)
+	 *
+	 * @return long
+	 */
+	public long getCreateDate() {
+		return this.id;
+	}
+
+	/**
+	 * Return horizontal accuracy (in meters)
+	 *
+	 * @return double
+	 */
+	public double getHorizontalAccuracy() {
+		return this.horizontal_accuracy;
+	}
+
+	/**
+	 * Return identifier of row
+	 *
+	 * @return long
+	 */
+	public long getId() {
+		return this.id;
+	}
+
+	/**
+	 * Return latitude
+	 *
+	 * @return double
+	 */
+	public double getLatitude() {
 		return this.latitude;
 	}
 
 	/**
 	 * Return longitude
 	 *
-	 * @return String
+	 * @return double
 	 */
-	public String getLongitude() {
+	public double getLongitude() {
 		return this.longitude;
 	}
 
+	/**
+	 * Return power state when the point was saved
+	 *
+	 * @return int
+	 */
+	public int getPowerFlags() {
+		return this.power_flags;
+	}
+
+	/**
+	 * Return speed (in meters per second)
+	 *
+	 * @return double
+	 */
+	public double getSpeed() {
+		return this.speed;
+	}
+
+	/**
+	 * Return other data in the format the server expects
+	 *
+	 * @NOTE See GPSDatabaseTableHelpers.insertLocation for what the fields mean
+	 *
+	 * @return JSONObject
+	 *
+	 * @throws JSONException
+	 */
+	public JSONObject returnOtherDataAsJSONObject() throws JSONException {
+		JSONObject other_data = new JSONObject();
+
+		other_data.put("hacc", this.horizontal_accuracy);
+		other_data.put("spd", this.speed);
+		other_data.put("idim", getPowerFlag(this.power_flags, POWER_FLAG_DEVICE_IDLE_MODE));
+		other_data.put("ii", getPowerFlag(this.power_flags, POWER_FLAG_INTERACTIVE));
+		other_data.put("ipsm", getPowerFlag(this.power_flags, POWER_FLAG_POWER_SAVE_MODE));
+		other_data.put("iibo", getPowerFlag(this.power_flags, POWER_FLAG_IGNORING_BATTERY_OPTIMIZATIONS));
+		other_data.put("ic", getPowerFlag(this.power_flags, POWER_FLAG_CHARGING));
+
+		return other_data;
+	}
+
 	/**
 	 * Return as a JSON object
 	 *
@@ -114,14 +304,38 @@ public class GPSDatabaseRowObject {
 	 */
 	public JSONObject returnAsJSONObject() throws JSONException {
 		JSONObject data = new JSONObject();
+		String create_date = Helpers.formatUnixTime(this.id);
 
-		data.put("client_database_id", this.id);
-		data.put("access_token", this.access_token);
-		data.put("latitude", this.latitude);
-		data.put("longitude", this.longitude);
-		data.put("other_data", this.other_data);
-		data.put("create_date", this.create_date);
+		data.put("client_database_id", create_date);
+		data.put("access_token", this.getAccessToken());
+		data.put("latitude", Double.toString(this.latitude));
+		data.put("longitude", Double.toString(this.longitude));
+		data.put("other_data", this.returnOtherDataAsJSONObject().toString());
+		data.put("create_date", create_date);
 
 		return data;
 	}
+
+	/**
+	 * Write as a JSON object for an upload batch. This matches returnAsJSONObject, except the
+	 * access token is left out because the batch sends it once for every location.
+	 *
+	 * @param writer		Writer to write to
+	 *
+	 * @return void
+	 *
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public void writeAsJSON(JsonWriter writer) throws IOException, JSONException {
+		String create_date = Helpers.formatUnixTime(this.id);
+
+		writer.beginObject();
+		writer.name("client_database_id").value(create_date);
+		writer.name("latitude").value(Double.toString(this.latitude));
+		writer.name("longitude").value(Double.toString(this.longitude));
+		writer.name("other_data").value(this.returnOtherDataAsJSONObject().toString());
+		writer.name("create_date").value(create_date);
+		writer.endObject();
+	}
 }
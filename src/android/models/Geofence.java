@@ -8,6 +8,34 @@ package edu.wisc.chess.plugins.chesslocationmonitoring.models;
 import android.location.Location;
 
 public class Geofence implements GeofenceInterface {
+	/**
+	 * Classification of a fix that is outside of the geofence, even allowing for its accuracy
+	 *
+	 * @var int
+	 */
+	public static final int POINT_OUTSIDE = 0;
+
+	/**
+	 * Classification of a fix that is within the geofence, even allowing for its accuracy
+	 *
+	 * @var int
+	 */
+	public static final int POINT_INSIDE = 1;
+
+	/**
+	 * Classification of a fix whose accuracy circle crosses the boundary of the geofence
+	 *
+	 * @var int
+	 */
+	public static final int POINT_UNCERTAIN = 2;
+
+	/**
+	 * Shortest length of a degree of latitude (in meters), used so bounding boxes are never too small
+	 *
+	 * @var double
+	 */
+	protected static final double MIN_METERS_PER_DEGREE_LATITUDE = 110574;
+
 	/**
 	 * Identifier for geofence
 	 *
@@ -18,9 +46,60 @@ public class Geofence implements GeofenceInterface {
 	/**
 	 * State of the geofence
 	 *
-	 * @var String
+	 * @var GeofenceState
 	 */
-	protected String state = "";
+	protected GeofenceState state = GeofenceState.NONE;
+
+	/**
+	 * Distance past the boundary (in meters) a fix must be before the geofence is exited
+	 *
+	 * @var double
+	 */
+	protected double hysteresis = 0;
+
+	/**
+	 * Time (in milliseconds) fixes must stay on the other side of the boundary before the
+	 * geofence is entered or exited
+	 *
+	 * @var long
+	 */
+	protected long min_dwell_time = 0;
+
+	/**
+	 * Time of the first fix on the other side of the boundary that hasn't been there for the
+	 * minimum dwell time yet (milliseconds since epoch, 0 for none)
+	 *
+	 * @var long
+	 */
+	protected long pending_transition_time = 0;
+
+	/**
+	 * Southern edge of the geofence's bounding box
+	 *
+	 * @var double
+	 */
+	protected double min_latitude = -90;
+
+	/**
+	 * Northern edge of the geofence's bounding box
+	 *
+	 * @var double
+	 */
+	protected double max_latitude = 90;
+
+	/**
+	 * Western edge of the geofence's bounding box
+	 *
+	 * @var double
+	 */
+	protected double min_longitude = -180;
+
+	/**
+	 * Eastern edge of the geofence's bounding box
+	 *
+	 * @var double
+	 */
+	protected double max_longitude = 180;
 
 	/**
 	 * Construct geofence
@@ -34,11 +113,136 @@ public class Geofence implements GeofenceInterface {
 	}
 
 	/**
-	 * Return geofence state
+	 * Return identifier for geofence
 	 *
 	 * @return String
 	 */
-	public String getState() {
+	public String getId() {
+		return this.id;
+	}
+
+	/**
+	 * Return southern edge of the bounding box
+	 *
+	 * @return double
+	 */
+	public double getMinLatitude() {
+		return this.min_latitude;
+	}
+
+	/**
+	 * Return northern edge of the bounding box
+	 *
+	 * @return double
+	 */
+	public double getMaxLatitude() {
+		return this.max_latitude;
+	}
+
+	/**
+	 * Return western edge of the bounding box
+	 *
+	 * @return double
+	 */
+	public double getMinLongitude() {
+		return this.min_longitude;
+	}
+
+	/**
+	 * Return eastern edge of the bounding box
+	 *
+	 * @return double
+	 */
+	public double getMaxLongitude() {
+		return this.max_longitude;
+	}
+
+	/**
+	 * Classify a fix as inside, outside or uncertain (see the POINT constants), allowing for its
+	 * accuracy
+	 *
+	 * @param latitude		Latitude of fix
+	 * @param longitude		Longitude of fix
+	 * @param accuracy		Horizontal accuracy of fix (in meters)
+	 * @param hysteresis	Extra distance (in meters) past the boundary before the fix is outside
+	 *
+	 * @return int
+	 */
+	public int classifyPoint(double latitude, double longitude, double accuracy, double hysteresis) throws Exception {
+		throw new Exception("`classifyPoint` must be overwritten in subclass");
+	}
+
+	/**
+	 * Return a lower bound on the distance from a point to the geofence's bounding box (in
+	 * meters), which is 0 when the point is within the box. Used to skip geofences that can't be
+	 * the nearest.
+	 *
+	 * @param latitude		Latitude of point
+	 * @param longitude		Longitude of point
+	 *
+	 * @return double
+	 */
+	public double getDistanceToBoundingBox(double latitude, double longitude) {
+		double nearest_latitude = Math.max(this.min_latitude, Math.min(latitude, this.max_latitude));
+		double nearest_longitude = Math.max(this.min_longitude, Math.min(longitude, this.max_longitude));
+
+		// Longitude degrees shrink towards the poles, so use the latitude furthest from the equator
+		double cos_latitude = Math.cos(Math.toRadians(Math.max(Math.abs(latitude), Math.abs(nearest_latitude))));
+
+		double y = (latitude - nearest_latitude) * MIN_METERS_PER_DEGREE_LATITUDE;
+		double x = (longitude - nearest_longitude) * MIN_METERS_PER_DEGREE_LATITUDE * Math.max(cos_latitude, 0);
+
+		return Math.sqrt(x * x + y * y);
+	}
+
+	/**
+	 * Return signed distance from a point to the boundary of the geofence (in meters), which is
+	 * negative when the point is within the geofence
+	 *
+	 * @param latitude		Latitude of point
+	 * @param longitude		Longitude of point
+	 *
+	 * @return double
+	 */
+	public double getDistanceToBoundary(double latitude, double longitude) throws Exception {
+		throw new Exception("`getDistanceToBoundary` must be overwritten in subclass");
+	}
+
+	/**
+	 * Return distance past the boundary (in meters) a fix must be before the geofence is exited
+	 *
+	 * @return double
+	 */
+	public double getHysteresis() {
+		return this.hysteresis;
+	}
+
+	/**
+	 * Return time (in milliseconds) fixes must stay on the other side of the boundary before
+	 * the geofence is entered or exited
+	 *
+	 * @return long
+	 */
+	public long getMinDwellTime() {
+		return this.min_dwell_time;
+	}
+
+	/**
+	 * Return time of the first fix on the other side of the boundary that hasn't been there for
+	 * the minimum dwell time yet (milliseconds since epoch, 0 for none)
+	 *
+	 * @return long
+	 */
+	public long getPendingTransitionTime() {
+		return this.pending_transition_time;
+	}
+
+	/**
+	 * Return geofence state
+	 *
+	 * @return GeofenceState
+	 */
+	public GeofenceState getState() {
 		return this.state;
 	}
 
@@ -50,9 +254,99 @@ public class Geofence implements GeofenceInterface {
 	 * @return boolean
 	 */
 	public boolean isPointWithinGeofence(Location gps_point) throws Exception {
+		return this.isPointWithinGeofence(gps_point.getLatitude(), gps_point.getLongitude());
+	}
+
+	/**
+	 * Check if point is within the geofence
+	 *
+	 * @param latitude		Latitude of point to check
+	 * @param longitude		Longitude of point to check
+	 *
+	 * @return boolean
+	 */
+	public boolean isPointWithinGeofence(double latitude, double longitude) throws Exception {
 		throw new Exception("`isPointWithinGeofence` must be overwritten in subclass");
 	}
 
+	/**
+	 * Check if point is within the geofence's bounding box
+	 *
+	 * @param latitude		Latitude of point to check
+	 * @param longitude		Longitude of point to check
+	 *
+	 * @return boolean
+	 */
+	public boolean isPointWithinBoundingBox(double latitude, double longitude) {
+		return latitude >= this.min_latitude && latitude <= this.max_latitude
+			&& longitude >= this.min_longitude && longitude <= this.max_longitude;
+	}
+
+	/**
+	 * Check if point is within the geofence's bounding box grown by a distance. The box is grown
+	 * by at least the distance, so a point outside of it is certainly further than that from the
+	 * geofence.
+	 *
+	 * @param latitude		Latitude of point to check
+	 * @param longitude		Longitude of point to check
+	 * @param margin		Distance to grow the box by (in meters)
+	 *
+	 * @return boolean
+	 */
+	public boolean isPointWithinBoundingBox(double latitude, double longitude, double margin) {
+		if (margin <= 0) {
+			return this.isPointWithinBoundingBox(latitude, longitude);
+		}
+
+		double latitude_margin = margin / MIN_METERS_PER_DEGREE_LATITUDE;
+		if (latitude < this.min_latitude - latitude_margin || latitude > this.max_latitude + latitude_margin) {
+			return false;
+		}
+
+		// Longitude degrees shrink towards the poles, so use the latitude furthest from the equator
+		double cos_latitude = Math.cos(Math.toRadians(Math.min(Math.abs(latitude) + latitude_margin, 90)));
+		if (cos_latitude <= 0) {
+			return true;
+		}
+
+		double longitude_margin = latitude_margin / cos_latitude;
+		return longitude >= this.min_longitude - longitude_margin && longitude <= this.max_longitude + longitude_margin;
+	}
+
+	/**
+	 * Set distance past the boundary (in meters) a fix must be before the geofence is exited
+	 *
+	 * @param hysteresis	Distance to set
+	 *
+	 * @return void
+	 */
+	public void setHysteresis(double hysteresis) {
+		this.hysteresis = Math.max(hysteresis, 0);
+	}
+
+	/**
+	 * Set time (in milliseconds) fixes must stay on the other side of the boundary before the
+	 * geofence is entered or exited
+	 *
+	 * @param min_dwell_time	Time to set
+	 *
+	 * @return void
+	 */
+	public void setMinDwellTime(long min_dwell_time) {
+		this.min_dwell_time = Math.max(min_dwell_time, 0);
+	}
+
+	/**
+	 * Set time of the first fix on the other side of the boundary
+	 *
+	 * @param pending_transition_time	Time to set (milliseconds since epoch, 0 for none)
+	 *
+	 * @return void
+	 */
+	public void setPendingTransitionTime(long pending_transition_time) {
+		this.pending_transition_time = pending_transition_time;
+	}
+
 	/**
 	 * Set geofence state
 	 *
@@ -60,7 +354,7 @@ public class Geofence implements GeofenceInterface {
 	 *
 	 * @return void
 	 */
-	public void setState(String state) {
+	public void setState(GeofenceState state) {
 		this.state = state;
 	}
 }
@@ -8,7 +8,10 @@ package edu.wisc.chess.plugins.chesslocationmonitoring.models;
 import android.location.Location;
 
 interface GeofenceInterface {
-	String getState();
+	int classifyPoint(double latitude, double longitude, double accuracy, double hysteresis) throws Exception;
+	double getDistanceToBoundary(double latitude, double longitude) throws Exception;
+	GeofenceState getState();
 	boolean isPointWithinGeofence(Location gps_point) throws Exception;
-	void setState(String state);
+	boolean isPointWithinGeofence(double latitude, double longitude) throws Exception;
+	void setState(GeofenceState state);
 }
@@ -0,0 +1,183 @@
+/**
+ * State of a geofence
+ *
+ * Each state has a small code, so the geofence manager can count geofences per state in an array,
+ * and the name that is saved in the geofence states table.
+ *
+ * @NOTE
+ * 		NONE -> ACTIVATED: First fix inside after a reset (enter)
+ * 		INACTIVATED, INACTIVE -> ACTIVATED: Fix inside after being outside (enter)
+ * 		ACTIVATED -> ACTIVE: Second fix inside in a row (dwell)
+ * 		ACTIVATED, ACTIVE -> INACTIVATED: Fix outside after being inside (exit)
+ * 		NONE -> INACTIVATED: First fix outside after a reset
+ * 		INACTIVATED -> INACTIVE: Second fix outside in a row
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.models;
+
+public enum GeofenceState {
+	NONE((byte) 0, ""),
+	ACTIVATED((byte) 1, "activated"),
+	ACTIVE((byte) 2, "active"),
+	INACTIVATED((byte) 3, "inactivated"),
+	INACTIVE((byte) 4, "inactive");
+
+	/**
+	 * States by their code
+	 *
+	 * @var GeofenceState[]
+	 */
+	protected static final GeofenceState[] STATES_BY_CODE = values();
+
+	/**
+	 * Code of the state (its position in STATES_BY_CODE)
+	 *
+	 * @var byte
+	 */
+	protected final byte code;
+
+	/**
+	 * Name of the state, as saved in the database
+	 *
+	 * @var String
+	 */
+	protected final String value;
+
+	/**
+	 * Construct the state
+	 *
+	 * @param code		Code of the state
+	 * @param value		Name of the state, as saved in the database
+	 *
+	 * @return void
+	 */
+	GeofenceState(byte code, String value) {
+		this.code = code;
+		this.value = value;
+	}
+
+	/**
+	 * Return the state with a code
+	 *
+	 * @param code		Code of the state
+	 *
+	 * @return GeofenceState	State, or NONE if the code isn't known
+	 */
+	public static GeofenceState fromCode(int code) {
+		if (code < 0 || code >= STATES_BY_CODE.length) {
+			return NONE;
+		}
+
+		return STATES_BY_CODE[code];
+	}
+
+	/**
+	 * Return the state with a name saved in the database
+	 *
+	 * @param value		Name of the state
+	 *
+	 * @return GeofenceState	State, or NONE if the name isn't known
+	 */
+	public static GeofenceState fromValue(String value) {
+		if (value == null) {
+			return NONE;
+		}
+
+		for (GeofenceState state : STATES_BY_CODE) {
+			if (state.value.equalsIgnoreCase(value)) {
+				return state;
+			}
+		}
+
+		return NONE;
+	}
+
+	/**
+	 * Return the number of states
+	 *
+	 * @return int
+	 */
+	public static int getCount() {
+		return STATES_BY_CODE.length;
+	}
+
+	/**
+	 * Return code of the state
+	 *
+	 * @return byte
+	 */
+	public byte getCode() {
+		return this.code;
+	}
+
+	/**
+	 * Return name of the state, as saved in the database
+	 *
+	 * @return String
+	 */
+	public String getValue() {
+		return this.value;
+	}
+
+	/**
+	 * Return whether the last fix was inside the geofence
+	 *
+	 * @return boolean
+	 */
+	public boolean isInside() {
+		return (this == ACTIVATED || this == ACTIVE);
+	}
+
+	/**
+	 * Return whether the geofence has settled outside (i.e. no longer needs updating when a
+	 * point is outside of it)
+	 *
+	 * @return boolean
+	 */
+	public boolean isSettled() {
+		return (this == INACTIVE);
+	}
+
+	/**
+	 * Return the state after a fix
+	 *
+	 * @param is_within_geofence	Indicates if the fix is within the geofence
+	 *
+	 * @return GeofenceState
+	 */
+	public GeofenceState next(boolean is_within_geofence) {
+		if (is_within_geofence) {
+			return this.isInside() ? ACTIVE : ACTIVATED;
+		}
+
+		if (this.isInside() || this == NONE) {
+			return INACTIVATED;
+		}
+
+		return INACTIVE;
+	}
+
+	/**
+	 * Return the type of transition when moving from this state to another
+	 *
+	 * @param next_state	State after the fix
+	 *
+	 * @return String		GeofenceTransition type, or null if the move isn't a transition
+	 */
+	public String getTransitionType(GeofenceState next_state) {
+		if (!this.isInside() && next_state.isInside()) {
+			return GeofenceTransition.TYPE_ENTER;
+		}
+
+		if (this.isInside() && !next_state.isInside()) {
+			return GeofenceTransition.TYPE_EXIT;
+		}
+
+		if (this == ACTIVATED && next_state == ACTIVE) {
+			return GeofenceTransition.TYPE_DWELL;
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Geofence transition object
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.models;
+
+public class GeofenceTransition {
+	/**
+	 * Transition type when entering a geofence
+	 *
+	 * @var String
+	 */
+	public static final String TYPE_ENTER = "enter";
+
+	/**
+	 * Transition type when staying in a geofence for a second fix
+	 *
+	 * @var String
+	 */
+	public static final String TYPE_DWELL = "dwell";
+
+	/**
+	 * Transition type when exiting a geofence
+	 *
+	 * @var String
+	 */
+	public static final String TYPE_EXIT = "exit";
+
+	/**
+	 * Identifier for geofence
+	 *
+	 * @var String
+	 */
+	protected String place_id;
+
+	/**
+	 * Type of transition
+	 *
+	 * @var String
+	 */
+	protected String type;
+
+	/**
+	 * Time of the fix that caused the transition (milliseconds since epoch)
+	 *
+	 * @var long
+	 */
+	protected long time;
+
+	/**
+	 * Constructor for object
+	 *
+	 * @param place_id		Identifier for geofence
+	 * @param type			Type of transition
+	 * @param time			Time of the fix that caused the transition (milliseconds since epoch)
+	 *
+	 * @return void
+	 */
+	public GeofenceTransition(String place_id, String type, long time) {
+		this.place_id = place_id;
+		this.type = type;
+		this.time = time;
+	}
+
+	/**
+	 * Return identifier for geofence
+	 *
+	 * @return String
+	 */
+	public String getPlaceId() {
+		return this.place_id;
+	}
+
+	/**
+	 * Return time of the transition
+	 *
+	 * @return long
+	 */
+	public long getTime() {
+		return this.time;
+	}
+
+	/**
+	 * Return type of transition
+	 *
+	 * @return String
+	 */
+	public String getType() {
+		return this.type;
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Batch of locations sent to the server
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.models;
+
+import java.util.ArrayList;
+
+public class LocationBatch {
+	/**
+	 * Token for passing data to the server
+	 *
+	 * @var String
+	 */
+	protected String token;
+
+	/**
+	 * Access token the locations were saved with
+	 *
+	 * @var String
+	 */
+	protected String access_token;
+
+	/**
+	 * Locations in the batch (oldest first)
+	 *
+	 * @var ArrayList<GPSDatabaseRowObject>
+	 */
+	protected ArrayList<GPSDatabaseRowObject> locations;
+
+	/**
+	 * Constructor for object
+	 *
+	 * @param token				Token for passing data to the server
+	 * @param access_token		Access token the locations were saved with
+	 *
+	 * @return void
+	 */
+	public LocationBatch(String token, String access_token) {
+		this.token = token;
+		this.access_token = access_token;
+		this.locations = new ArrayList<>();
+	}
+
+	/**
+	 * Add a location to the batch
+	 *
+	 * @param location		Location to add
+	 *
+	 * @return void
+	 */
+	public void addLocation(GPSDatabaseRowObject location) {
+		this.locations.add(location);
+	}
+
+	/**
+	 * Return access token the locations were saved with
+	 *
+	 * @return String
+	 */
+	public String getAccessToken() {
+		return this.access_token;
+	}
+
+	/**
+	 * Return locations in the batch
+	 *
+	 * @return ArrayList<GPSDatabaseRowObject>
+	 */
+	public ArrayList<GPSDatabaseRowObject> getLocations() {
+		return this.locations;
+	}
+
+	/**
+	 * Return token for passing data to the server
+	 *
+	 * @return String
+	 */
+	public String getToken() {
+		return this.token;
+	}
+}
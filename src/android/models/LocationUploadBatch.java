@@ -0,0 +1,117 @@
+/**
+ * Range of locations claimed for one upload request
+ *
+ * A batch covers every location with an id after after_id up to and including last_id. All of
+ * them were saved with the same access token, so the token is sent once for the batch.
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.models;
+
+public class LocationUploadBatch {
+	/**
+	 * Identifier the batch starts after
+	 *
+	 * @var long
+	 */
+	protected long after_id;
+
+	/**
+	 * Identifier of the newest location in the batch
+	 *
+	 * @var long
+	 */
+	protected long last_id;
+
+	/**
+	 * Access token the locations were saved with
+	 *
+	 * @var String
+	 */
+	protected String access_token;
+
+	/**
+	 * Number of locations in the batch
+	 *
+	 * @var int
+	 */
+	protected int num_locations;
+
+	/**
+	 * Number of times the server failed to save the batch
+	 *
+	 * @var int
+	 */
+	protected int num_failed_attempts = 0;
+
+	/**
+	 * Constructor for object
+	 *
+	 * @param after_id			Identifier the batch starts after
+	 * @param last_id			Identifier of the newest location in the batch
+	 * @param access_token		Access token the locations were saved with (may be null)
+	 * @param num_locations		Number of locations in the batch
+	 *
+	 * @return void
+	 */
+	public LocationUploadBatch(long after_id, long last_id, String access_token, int num_locations) {
+		this.after_id = after_id;
+		this.last_id = last_id;
+		this.access_token = access_token;
+		this.num_locations = num_locations;
+	}
+
+	/**
+	 * Return access token the locations were saved with
+	 *
+	 * @return String
+	 */
+	public String getAccessToken() {
+		return this.access_token;
+	}
+
+	/**
+	 * Return identifier the batch starts after
+	 *
+	 * @return long
+	 */
+	public long getAfterId() {
+		return this.after_id;
+	}
+
+	/**
+	 * Return identifier of the newest location in the batch
+	 *
+	 * @return long
+	 */
+	public long getLastId() {
+		return this.last_id;
+	}
+
+	/**
+	 * Return number of times the server failed to save the batch
+	 *
+	 * @return int
+	 */
+	public int getNumFailedAttempts() {
+		return this.num_failed_attempts;
+	}
+
+	/**
+	 * Return number of locations in the batch
+	 *
+	 * @return int
+	 */
+	public int getNumLocations() {
+		return this.num_locations;
+	}
+
+	/**
+	 * Count a time the server failed to save the batch
+	 *
+	 * @return int		Number of failed attempts so far
+	 */
+	public int recordFailedAttempt() {
+		return ++this.num_failed_attempts;
+	}
+}
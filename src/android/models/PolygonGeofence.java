@@ -7,6 +7,8 @@ package edu.wisc.chess.plugins.chesslocationmonitoring.models;
 
 import android.location.Location;
 
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.DistanceHelpers;
+
 public class PolygonGeofence extends Geofence {
 	/**
 	 * Set of vertices saved as coordinates that describe the perimeter of a polygon.
@@ -15,6 +17,77 @@ public class PolygonGeofence extends Geofence {
 	 */
 	GPSPoint[] points;
 
+	/**
+	 * Number of edges in the polygon
+	 *
+	 * @var int
+	 */
+	protected int num_edges = 0;
+
+	/**
+	 * Latitude of the lower ("a") end of each edge
+	 *
+	 * @var double[]
+	 */
+	protected double[] edge_lower_latitudes;
+
+	/**
+	 * Shifted longitude of the lower ("a") end of each edge
+	 *
+	 * @var double[]
+	 */
+	protected double[] edge_lower_longitudes;
+
+	/**
+	 * Latitude of the upper ("b") end of each edge
+	 *
+	 * @var double[]
+	 */
+	protected double[] edge_upper_latitudes;
+
+	/**
+	 * Smallest shifted longitude of each edge
+	 *
+	 * @var double[]
+	 */
+	protected double[] edge_min_longitudes;
+
+	/**
+	 * Largest shifted longitude of each edge
+	 *
+	 * @var double[]
+	 */
+	protected double[] edge_max_longitudes;
+
+	/**
+	 * Slope of each edge (Double.MAX_VALUE for vertical edges)
+	 *
+	 * @var double[]
+	 */
+	protected double[] edge_slopes;
+
+	/**
+	 * Smallest shifted longitude of the polygon
+	 *
+	 * @var double
+	 */
+	protected double shifted_min_longitude = Double.MAX_VALUE;
+
+	/**
+	 * Largest shifted longitude of the polygon
+	 *
+	 * @var double
+	 */
+	protected double shifted_max_longitude = -Double.MAX_VALUE;
+
+	/**
+	 * Largest accuracy (in meters) used when deciding a fix is inside, about a quarter of the
+	 * polygon's smaller bounding box dimension
+	 *
+	 * @var double
+	 */
+	protected double max_inside_accuracy = 0;
+
 	/**
 	 * Construct geofence
 	 *
@@ -26,6 +99,192 @@ public class PolygonGeofence extends Geofence {
 	public PolygonGeofence(String id, GPSPoint[] points) {
 		super(id);
 		this.points = points;
+
+		this.computeBoundingBox();
+		this.compileEdges();
+		this.computeMaxInsideAccuracy();
+	}
+
+	/**
+	 * Compile the perimeter into edge tables so checking a point doesn't have to recompute
+	 * the longitude shift, ordering and slope of every edge.
+	 *
+	 * @return void
+	 */
+	protected void compileEdges() {
+		int count = (this.points == null) ? 0 : this.points.length;
+
+		this.num_edges = count;
+		this.edge_lower_latitudes = new double[count];
+		this.edge_lower_longitudes = new double[count];
+		this.edge_upper_latitudes = new double[count];
+		this.edge_min_longitudes = new double[count];
+		this.edge_max_longitudes = new double[count];
+		this.edge_slopes = new double[count];
+
+		// For each edge
+		for (int i = 0; i < count; i++) {
+			GPSPoint a = this.points[i];
+
+			// If j is greater than the number of vertices on the polygon, go to first vertice
+			// because it is a closed path and will loop around to the beginning.
+			GPSPoint b = this.points[(i + 1 < count) ? i + 1 : 0];
+
+			// By always putting "b" above "a" in terms of latitude, the check doesn't have to
+			// figure out which is higher later on.
+			if (a.latitude > b.latitude) {
+				GPSPoint temp = a;
+				a = b;
+				b = temp;
+			}
+
+			double ax = shiftLongitude(a.longitude);
+			double bx = shiftLongitude(b.longitude);
+
+			this.edge_lower_latitudes[i] = a.latitude;
+			this.edge_lower_longitudes[i] = ax;
+			this.edge_upper_latitudes[i] = b.latitude;
+			this.edge_min_longitudes[i] = Math.min(ax, bx);
+			this.edge_max_longitudes[i] = Math.max(ax, bx);
+			this.edge_slopes[i] = (ax != bx) ? ((b.latitude - a.latitude) / (bx - ax)) : Double.MAX_VALUE;
+
+			this.shifted_min_longitude = Math.min(this.shifted_min_longitude, this.edge_min_longitudes[i]);
+			this.shifted_max_longitude = Math.max(this.shifted_max_longitude, this.edge_max_longitudes[i]);
+		}
+	}
+
+	/**
+	 * Compute the largest accuracy used when deciding a fix is inside, so a fix near the middle of
+	 * a polygon smaller than its accuracy still counts as inside
+	 *
+	 * @return void
+	 */
+	protected void computeMaxInsideAccuracy() {
+		if (this.num_edges == 0) {
+			return;
+		}
+
+		double middle_latitude = (this.min_latitude + this.max_latitude) / 2;
+		double height = (this.max_latitude - this.min_latitude) * MIN_METERS_PER_DEGREE_LATITUDE;
+		double width = (this.shifted_max_longitude - this.shifted_min_longitude) * MIN_METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(middle_latitude));
+
+		this.max_inside_accuracy = Math.max(Math.min(height, width) / 4, 0);
+	}
+
+	/**
+	 * Compute the bounding box that encloses every vertex
+	 *
+	 * @return void
+	 */
+	protected void computeBoundingBox() {
+		if (this.points == null || this.points.length == 0) {
+			return;
+		}
+
+		this.min_latitude = Double.MAX_VALUE;
+		this.max_latitude = -Double.MAX_VALUE;
+		this.min_longitude = Double.MAX_VALUE;
+		this.max_longitude = -Double.MAX_VALUE;
+
+		for (GPSPoint point : this.points) {
+			this.min_latitude = Math.min(this.min_latitude, point.latitude);
+			this.max_latitude = Math.max(this.max_latitude, point.latitude);
+			this.min_longitude = Math.min(this.min_longitude, point.longitude);
+			this.max_longitude = Math.max(this.max_longitude, point.longitude);
+		}
+
+		// Polygons that cross the 180 degree meridian can't be described by a simple longitude range
+		if (this.max_longitude - this.min_longitude > 180) {
+			this.min_longitude = -180;
+			this.max_longitude = 180;
+		}
+	}
+
+	/**
+	 * Return signed distance from a point to the boundary of the geofence (in meters), which is
+	 * negative when the point is within the geofence. Each edge is measured with an
+	 * equirectangular approximation around the point, which is accurate for the short distances
+	 * hysteresis cares about.
+	 *
+	 * @param latitude		Latitude of point
+	 * @param longitude		Longitude of point
+	 *
+	 * @return double
+	 */
+	public double getDistanceToBoundary(double latitude, double longitude) {
+		if (this.num_edges == 0) {
+			return Double.MAX_VALUE;
+		}
+
+		double distance = this.getDistanceToEdges(latitude, longitude);
+		return this.pointIsInRegion(longitude, latitude) ? -distance : distance;
+	}
+
+	/**
+	 * Return distance from a point to the nearest edge of the polygon (in meters)
+	 *
+	 * @param latitude		Latitude of point
+	 * @param longitude		Longitude of point
+	 *
+	 * @return double
+	 */
+	protected double getDistanceToEdges(double latitude, double longitude) {
+		double px = shiftLongitude(longitude);
+		double cos_latitude = Math.cos(Math.toRadians(latitude));
+		double distance = Double.MAX_VALUE;
+
+		for (int i = 0; i < this.num_edges; i++) {
+			double ax = this.edge_lower_longitudes[i];
+			double bx = (ax == this.edge_min_longitudes[i]) ? this.edge_max_longitudes[i] : this.edge_min_longitudes[i];
+
+			distance = Math.min(distance, DistanceHelpers.getEquirectangularDistanceToSegment(latitude, px, this.edge_lower_latitudes[i], ax, this.edge_upper_latitudes[i], bx, cos_latitude));
+		}
+
+		return distance;
+	}
+
+	/**
+	 * Classify a fix as inside, outside or uncertain (see the POINT constants), allowing for its
+	 * accuracy
+	 *
+	 * Fixes further than their accuracy and the hysteresis from the bounding box are outside
+	 * without any polygon math, and exact fixes only need the ray crossing test. Only fixes
+	 * whose accuracy circle might reach the boundary are measured against the edges.
+	 *
+	 * @param latitude		Latitude of fix
+	 * @param longitude		Longitude of fix
+	 * @param accuracy		Horizontal accuracy of fix (in meters)
+	 * @param hysteresis	Extra distance (in meters) past the boundary before the fix is outside
+	 *
+	 * @return int
+	 */
+	public int classifyPoint(double latitude, double longitude, double accuracy, double hysteresis) {
+		if (this.num_edges == 0) {
+			return POINT_OUTSIDE;
+		}
+
+		double inside_accuracy = Math.min(Math.max(accuracy, 0), this.max_inside_accuracy);
+		double outside_distance = Math.max(accuracy, 0) + Math.max(hysteresis, 0);
+
+		if (!this.isPointWithinBoundingBox(latitude, longitude, outside_distance)) {
+			return POINT_OUTSIDE;
+		}
+
+		boolean is_within_geofence = this.pointIsInRegion(longitude, latitude);
+		if (is_within_geofence && inside_accuracy <= 0) {
+			return POINT_INSIDE;
+		}
+
+		if (!is_within_geofence && outside_distance <= 0) {
+			return POINT_OUTSIDE;
+		}
+
+		double distance = this.getDistanceToEdges(latitude, longitude);
+		if (is_within_geofence) {
+			return (distance > inside_accuracy) ? POINT_INSIDE : POINT_UNCERTAIN;
+		}
+
+		return (distance > outside_distance) ? POINT_OUTSIDE : POINT_UNCERTAIN;
 	}
 
 	/**
@@ -36,19 +295,32 @@ public class PolygonGeofence extends Geofence {
 	 * @return boolean
 	 */
 	public boolean isPointWithinGeofence(Location gps_point) {
-		return this.pointIsInRegion(gps_point.getLongitude(), gps_point.getLatitude(), this.points);
+		return this.pointIsInRegion(gps_point.getLongitude(), gps_point.getLatitude());
+	}
+
+	/**
+	 * Check if point is within the geofence
+	 *
+	 * @param latitude		Latitude of point to check
+	 * @param longitude		Longitude of point to check
+	 *
+	 * @return boolean
+	 */
+	public boolean isPointWithinGeofence(double latitude, double longitude) {
+		return this.pointIsInRegion(longitude, latitude);
 	}
 
 	/**
 	 * This method checks to see if the provided Longitude(x) and Latitude(y) are located within
-	 * the polygon whose perimeter is traced by the coordinates in polygonPerimeterPath.
+	 * the polygon whose perimeter was compiled into the edge tables.
 	 *
 	 * The method it uses to determine this is as follows:
 	 *
-	 * 1. Draw a horizontal line to the east(right) of the point made by the passed in parameters of
+	 * 1. Reject the point if it lies outside of the polygon's bounding box.
+	 * 2. Draw a horizontal line to the east(right) of the point made by the passed in parameters of
 	 *      x and y.
-	 * 2. Count the number of times the line intersects with the polygon edges.
-	 * 3. The point is inside the polygon if either the number of intersections is odd or the point
+	 * 3. Count the number of times the line intersects with the polygon edges.
+	 * 4. The point is inside the polygon if either the number of intersections is odd or the point
 	 *      lies on the edge of a polygon. If neither of these conditions are true, then the point
 	 *      lies outside the polygon.
 	 *
@@ -56,39 +328,28 @@ public class PolygonGeofence extends Geofence {
 	 *
 	 * @param x The longitude of the point or user.
 	 * @param y The latitude of the point or user.
-	 * @param perimeter The set of vertices saved as coordinates that describe the
-	 *                             perimeter of a polygon.
-	 * @return boolean whether or not the provided point is within the provided region.
+	 * @return boolean whether or not the provided point is within the polygon.
 	 */
-	protected boolean pointIsInRegion(double x, double y, GPSPoint[] perimeter) {
-		int crossings = 0;
-
-		GPSPoint point = new GPSPoint(x, y);
-		int count = perimeter.length;
-
-		// For each edge
-		for (int i = 0; i < count; i++) {
-			GPSPoint a = perimeter[i];
-
-			// Get index of next vertice
-			int j = i + 1;
-
-			// If j is greater than the number of vertices on the polygon, go to first vertice
-			// because it is a closed path and will loop around to the beginning.
-			if (j >= count) {
-				j = 0;
-			}
+	protected boolean pointIsInRegion(double x, double y) {
+		if (this.num_edges == 0 || y < this.min_latitude || y > this.max_latitude) {
+			return false;
+		}
 
-			// Obtain the second point on the polygon path that will now complete the line segment
-			// from a to b.
-			GPSPoint b = perimeter[j];
+		// alter the longitude to cater for 180 degree crossings
+		double px = shiftLongitude(x);
+		if (px < this.shifted_min_longitude || px > this.shifted_max_longitude) {
+			return false;
+		}
 
+		int crossings = 0;
+		for (int i = 0; i < this.num_edges; i++) {
 			// If an infinitely long line is drawn out towards the east(right) of the point and
-			// intercepts the line segment made by a and b, increment crossings by 1.
-			if (rayCrossesSegment(point, a, b)) {
+			// intercepts the edge, increment crossings by 1.
+			if (this.rayCrossesEdge(i, px, y)) {
 				crossings++;
 			}
 		}
+
 		// If there are a Odd number of crossings, then the point is located inside the polygon.
 		// Otherwise, it is located outside of it.
 		return (crossings % 2 == 1);
@@ -96,8 +357,8 @@ public class PolygonGeofence extends Geofence {
 
 	/**
 	 * This method takes a point and in a sense draws an infinitely long line to the east(right) of
-	 * the point and determines if that line will intersect the line segment made by the points a
-	 * and b.
+	 * the point and determines if that line will intersect the given edge, whose lower end is "a"
+	 * and upper end is "b".
 	 *
 	 * This method accomplishes this by first determining if the point has a higher or lower y
 	 * position than the points a and b. Next it determines if the point is located to the left or
@@ -107,32 +368,15 @@ public class PolygonGeofence extends Geofence {
 	 *
 	 * NOTE: Algorithm based off of https://stackoverflow.com/questions/18486284/android-geofencing-polygon
 	 *
-	 * @param point point that you want to determine if crosses the a-b line segment
-	 * @param a first point of line segment
-	 * @param b second point of line segment
-	 * @return boolean true if a line drawn to the right of point crosses the a-b line segment otherwise
+	 * @param edge index of the edge in the edge tables
+	 * @param px shifted longitude of the point
+	 * @param py latitude of the point
+	 * @return boolean true if a line drawn to the right of point crosses the edge otherwise
 	 *          return false.
 	 */
-	protected boolean rayCrossesSegment(GPSPoint point, GPSPoint a, GPSPoint b) {
-		double px = point.longitude;
-		double py = point.latitude;
-		double ax = a.longitude;
-		double ay = a.latitude;
-		double bx = b.longitude;
-		double by = b.latitude;
-
-		// By always putting "b" above "a" in terms of latitude, the code doesn't have to check
-		// which is higher later on.
-		if (ay > by) {
-			ax = b.longitude;
-			ay = b.latitude;
-			bx = a.longitude;
-			by = a.latitude;
-		}
-		// alter the longitude to cater for 180 degree crossings
-		if (px < 0) { px += 360; }
-		if (ax < 0) { ax += 360; }
-		if (bx < 0) { bx += 360; }
+	protected boolean rayCrossesEdge(int edge, double px, double py) {
+		double ay = this.edge_lower_latitudes[edge];
+		double by = this.edge_upper_latitudes[edge];
 
 		// If the ray is too close to the segment it could cause errors so offset slightly.
 		if (py == ay || py == by) { py += 0.00000001; }
@@ -141,17 +385,17 @@ public class PolygonGeofence extends Geofence {
 		// won't intersect the line segment made by a and b. Also, if the point is located farther
 		// to the right of both of the points a and b, then an infinitely long line segment also
 		// won't intersect the line segment made by a and b.
-		if ((py > by || py < ay) || (px > Math.max(ax, bx))) { return false; }
+		if ((py > by || py < ay) || (px > this.edge_max_longitudes[edge])) { return false; }
 
 		// At this point, the point has to be located within a range of y's where the max and min
 		// are determined by the y values of the points a and b. If the point is located farther
 		// to the left than both a and b, then an infinitely long line drawn to the right of the
 		// point will intersect the line segment made by a and b.
-		if (px < Math.min(ax, bx)) { return true; }
+		if (px < this.edge_min_longitudes[edge]) { return true; }
 
 		// At this point, the only area not covered by the previous if statements is the area made
 		// by creating a square whose diagonal is the line segment between a and b.
-		// red = slope of the line segment from a to b
+		// red = slope of the line segment from a to b (precomputed)
 		// blue = slope of the line segment from a to p
 		// If the slope of the line made by a and p is greater than the slope of the line made by
 		// a and b, then the point p has to be to the left of the line segment a-b.
@@ -159,8 +403,20 @@ public class PolygonGeofence extends Geofence {
 		//  1. If the point p is directly above a, causing infinite slope.
 		//  2. a-b is a vertical line which means px has to be equal to ax at this point in the if
 		//      statements.
-		double red = (ax != bx) ? ((by - ay) / (bx - ax)) : Double.MAX_VALUE;
+		double ax = this.edge_lower_longitudes[edge];
+		double red = this.edge_slopes[edge];
 		double blue = (ax != px) ? ((py - ay) / (px - ax)) : Double.MAX_VALUE;
 		return (blue >= red);
 	}
+
+	/**
+	 * Shift a longitude into the 0 to 360 degree range to cater for 180 degree crossings
+	 *
+	 * @param longitude		Longitude to shift
+	 *
+	 * @return double
+	 */
+	protected static double shiftLongitude(double longitude) {
+		return (longitude < 0) ? longitude + 360 : longitude;
+	}
 }
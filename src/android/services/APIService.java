@@ -11,14 +11,23 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.Helpers;
 import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.SettingsDatabaseTableHelpers;
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 
@@ -51,6 +60,160 @@ public class APIService {
 	 */
 	protected String user_agent = "";
 
+	/**
+	 * Default time to wait for a connection (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long DEFAULT_CONNECT_TIMEOUT_MILLISECONDS = 15000;
+
+	/**
+	 * Default time to wait between bytes when reading a response (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long DEFAULT_READ_TIMEOUT_MILLISECONDS = 30000;
+
+	/**
+	 * Default time to wait between bytes when writing a request (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long DEFAULT_WRITE_TIMEOUT_MILLISECONDS = 30000;
+
+	/**
+	 * Default number of requests that can run at once
+	 *
+	 * @var long
+	 */
+	protected static final long DEFAULT_MAX_REQUESTS = 16;
+
+	/**
+	 * Default number of requests that can run at once against one host
+	 *
+	 * @var long
+	 */
+	protected static final long DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+	/**
+	 * Default number of idle connections to keep open
+	 *
+	 * @var long
+	 */
+	protected static final long DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+
+	/**
+	 * Default time to keep an idle connection open (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long DEFAULT_KEEP_ALIVE_MILLISECONDS = 5 * 60 * 1000;
+
+	/**
+	 * HTTP client shared by the process, so connections, TLS sessions and dispatcher threads are reused
+	 *
+	 * @var OkHttpClient
+	 */
+	protected static OkHttpClient client = null;
+
+	/**
+	 * Settings the shared client was built with
+	 *
+	 * @var String
+	 */
+	protected static String client_configuration = null;
+
+	/**
+	 * Delay before the first retry (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long BASE_RETRY_DELAY_MILLISECONDS = 5000;
+
+	/**
+	 * Longest delay between retries while the circuit is closed (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long MAX_RETRY_DELAY_MILLISECONDS = 5 * 60 * 1000;
+
+	/**
+	 * Number of failures in a row that opens the circuit
+	 *
+	 * @var int
+	 */
+	protected static final int CIRCUIT_BREAKER_THRESHOLD = 6;
+
+	/**
+	 * Time the circuit stays open before a single request is let through (in milliseconds)
+	 *
+	 * @var long
+	 */
+	protected static final long CIRCUIT_OPEN_MILLISECONDS = 30 * 60 * 1000;
+
+	/**
+	 * Lock for the retry state
+	 *
+	 * @var Object
+	 */
+	protected static final Object retry_lock = new Object();
+
+	/**
+	 * Indicates if the retry state has been read from settings
+	 *
+	 * @var boolean
+	 */
+	protected static boolean is_retry_state_loaded = false;
+
+	/**
+	 * Number of requests that have failed in a row
+	 *
+	 * @var int
+	 */
+	protected static int num_failures = 0;
+
+	/**
+	 * Time before which no request should be made (milliseconds since epoch)
+	 *
+	 * @var long
+	 */
+	protected static long next_attempt_time = 0;
+
+	/**
+	 * Indicates if the request that tests an open circuit is in flight
+	 *
+	 * @var boolean
+	 */
+	protected static boolean is_probe_in_flight = false;
+
+	/**
+	 * Retries waiting to run, by key
+	 *
+	 * @var HashMap<String, ScheduledFuture<?>>
+	 */
+	protected static HashMap<String, ScheduledFuture<?>> pending_retries = new HashMap<>();
+
+	/**
+	 * Executor that runs scheduled retries
+	 *
+	 * @var ScheduledExecutorService
+	 */
+	protected static ScheduledExecutorService retry_executor = null;
+
+	/**
+	 * Random numbers for jitter
+	 *
+	 * @var Random
+	 */
+	protected static Random random = new Random();
+
+	/**
+	 * Settings helper to save the retry state with (null if built without a context)
+	 *
+	 * @var SettingsDatabaseTableHelpers
+	 */
+	protected SettingsDatabaseTableHelpers settings_helper = null;
+
 	/**
 	 * Constructor for the object
 	 *
@@ -60,6 +223,10 @@ public class APIService {
 		SettingsDatabaseTableHelpers settings_helper = new SettingsDatabaseTableHelpers(context);
 		HashMap<String, String> settings = settings_helper.getSettings();
 
+		configureClient(settings);
+		loadRetryState(settings);
+		this.settings_helper = settings_helper;
+
 		if (settings.containsKey("api_url")) {
 			this.api_url = settings.get("api_url");
 		}
@@ -86,6 +253,311 @@ public class APIService {
 		this.access_token = access_token;
 	}
 
+	/**
+	 * Build the shared client from settings, or update it if the settings have changed
+	 *
+	 * @NOTE
+	 * 		The following settings are used (all optional):
+	 * 			api_connect_timeout_milliseconds: Time to wait for a connection
+	 * 			api_read_timeout_milliseconds: Time to wait between bytes when reading a response
+	 * 			api_write_timeout_milliseconds: Time to wait between bytes when writing a request
+	 * 			api_max_requests: Number of requests that can run at once
+	 * 			api_max_requests_per_host: Number of requests that can run at once against one host
+	 * 			api_max_idle_connections: Number of idle connections to keep open
+	 * 			api_keep_alive_milliseconds: Time to keep an idle connection open
+	 *
+	 * @param settings		Settings to use
+	 *
+	 * @return void
+	 */
+	protected static synchronized void configureClient(HashMap<String, String> settings) {
+		long connect_timeout = getLongSetting(settings, "api_connect_timeout_milliseconds", DEFAULT_CONNECT_TIMEOUT_MILLISECONDS);
+		long read_timeout = getLongSetting(settings, "api_read_timeout_milliseconds", DEFAULT_READ_TIMEOUT_MILLISECONDS);
+		long write_timeout = getLongSetting(settings, "api_write_timeout_milliseconds", DEFAULT_WRITE_TIMEOUT_MILLISECONDS);
+		long max_requests = getLongSetting(settings, "api_max_requests", DEFAULT_MAX_REQUESTS);
+		long max_requests_per_host = getLongSetting(settings, "api_max_requests_per_host", DEFAULT_MAX_REQUESTS_PER_HOST);
+		long max_idle_connections = getLongSetting(settings, "api_max_idle_connections", DEFAULT_MAX_IDLE_CONNECTIONS);
+		long keep_alive = getLongSetting(settings, "api_keep_alive_milliseconds", DEFAULT_KEEP_ALIVE_MILLISECONDS);
+
+		String configuration = connect_timeout + "," + read_timeout + "," + write_timeout + "," + max_requests + "," + max_requests_per_host + "," + max_idle_connections + "," + keep_alive;
+		if (client != null && configuration.equals(client_configuration)) {
+			return;
+		}
+
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests((int) max_requests);
+		dispatcher.setMaxRequestsPerHost((int) max_requests_per_host);
+
+		// HTTP/2 is used when the server offers it over TLS, which lets requests share one connection
+		client = new OkHttpClient.Builder()
+			.connectionPool(new ConnectionPool((int) max_idle_connections, keep_alive, TimeUnit.MILLISECONDS))
+			.dispatcher(dispatcher)
+			.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+			.connectTimeout(connect_timeout, TimeUnit.MILLISECONDS)
+			.readTimeout(read_timeout, TimeUnit.MILLISECONDS)
+			.writeTimeout(write_timeout, TimeUnit.MILLISECONDS)
+			.retryOnConnectionFailure(true)
+			.build();
+
+		client_configuration = configuration;
+
+		Helpers.log("APIService.configureClient: Built client - " + configuration);
+	}
+
+	/**
+	 * Return the shared client, building it with the default settings if needed
+	 *
+	 * @return OkHttpClient
+	 */
+	public static synchronized OkHttpClient getClient() {
+		if (client == null) {
+			configureClient(new HashMap<String, String>());
+		}
+
+		return client;
+	}
+
+	/**
+	 * Return a positive number from settings
+	 *
+	 * @param settings			Settings to read
+	 * @param key				Key of setting
+	 * @param default_value		Value to use if the setting is missing or isn't a positive number
+	 *
+	 * @return long
+	 */
+	protected static long getLongSetting(HashMap<String, String> settings, String key, long default_value) {
+		String value = settings.get(key);
+		if (value == null || value.isEmpty()) {
+			return default_value;
+		}
+
+		try {
+			long number = (long) Double.parseDouble(value);
+			return (number > 0) ? number : default_value;
+
+		} catch (NumberFormatException error) {
+			return default_value;
+		}
+	}
+
+	/**
+	 * Return if a response status is worth retrying (timeouts, rate limits and server errors)
+	 *
+	 * @param status_code		HTTP status of the response
+	 *
+	 * @return boolean
+	 */
+	public static boolean isRetryableStatus(int status_code) {
+		return status_code == 408 || status_code == 429 || status_code >= 500;
+	}
+
+	/**
+	 * Return if a request can be made now. Requests wait while backing off, and only one request
+	 * at a time is let through to test an open circuit.
+	 *
+	 * @NOTE This only checks, so it can be used to skip work before a request. Call
+	 * 		tryStartRequest right before making the request.
+	 *
+	 * @return boolean
+	 */
+	public boolean isRequestAllowed() {
+		synchronized (retry_lock) {
+			if (System.currentTimeMillis() < next_attempt_time) {
+				return false;
+			}
+
+			return !(num_failures >= CIRCUIT_BREAKER_THRESHOLD && is_probe_in_flight);
+		}
+	}
+
+	/**
+	 * Read the retry state from settings, if it hasn't been read already
+	 *
+	 * @NOTE
+	 * 		The following settings are used:
+	 * 			api_retry_num_failures: Number of requests that have failed in a row
+	 * 			api_retry_next_attempt_time: Time before which no request should be made (milliseconds since epoch)
+	 *
+	 * @param settings		Settings to read
+	 *
+	 * @return void
+	 */
+	protected static void loadRetryState(HashMap<String, String> settings) {
+		synchronized (retry_lock) {
+			if (is_retry_state_loaded) {
+				return;
+			}
+
+			num_failures = (int) getLongSetting(settings, "api_retry_num_failures", 0);
+			next_attempt_time = getLongSetting(settings, "api_retry_next_attempt_time", 0);
+			is_retry_state_loaded = true;
+		}
+	}
+
+	/**
+	 * Record that a request failed and back off. The delay doubles with each failure in a row,
+	 * and a random half of it is added so clients that failed together don't retry together.
+	 * After CIRCUIT_BREAKER_THRESHOLD failures the circuit opens, and requests wait
+	 * CIRCUIT_OPEN_MILLISECONDS before one is let through to test it.
+	 *
+	 * Requests that were in flight together fail together (e.g. several upload batches in one
+	 * outage), so a failure while already backing off isn't counted again.
+	 *
+	 * @return long			Time to wait before the next request (in milliseconds)
+	 */
+	public long recordFailure() {
+		long delay;
+
+		synchronized (retry_lock) {
+			long now = System.currentTimeMillis();
+			if (now < next_attempt_time) {
+				return next_attempt_time - now;
+			}
+
+			num_failures++;
+			is_probe_in_flight = false;
+
+			if (num_failures >= CIRCUIT_BREAKER_THRESHOLD) {
+				delay = CIRCUIT_OPEN_MILLISECONDS;
+
+			} else {
+				delay = Math.min(BASE_RETRY_DELAY_MILLISECONDS << (num_failures - 1), MAX_RETRY_DELAY_MILLISECONDS);
+			}
+
+			delay = (delay / 2) + (long) (random.nextDouble() * (delay / 2));
+			next_attempt_time = now + delay;
+		}
+
+		Helpers.log("APIService.recordFailure: " + num_failures + " failures in a row, waiting " + delay + " ms");
+		this.saveRetryState();
+
+		return delay;
+	}
+
+	/**
+	 * Record that a request is being made if one is allowed now, so only one request tests an
+	 * open circuit. Checking and claiming the test are one step, so requests made by different
+	 * callers (e.g. events and location batches) can't both be let through.
+	 *
+	 * @return boolean		Indicates if the request can be made
+	 */
+	public boolean tryStartRequest() {
+		synchronized (retry_lock) {
+			if (System.currentTimeMillis() < next_attempt_time) {
+				return false;
+			}
+
+			if (num_failures >= CIRCUIT_BREAKER_THRESHOLD) {
+				if (is_probe_in_flight) {
+					return false;
+				}
+
+				is_probe_in_flight = true;
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Record that a request succeeded, closing the circuit
+	 *
+	 * @return void
+	 */
+	public void recordSuccess() {
+		synchronized (retry_lock) {
+			is_probe_in_flight = false;
+
+			if (num_failures == 0 && next_attempt_time == 0) {
+				return;
+			}
+
+			num_failures = 0;
+			next_attempt_time = 0;
+		}
+
+		this.saveRetryState();
+	}
+
+	/**
+	 * Save the retry state to settings, so backing off carries over when the process restarts
+	 *
+	 * @return void
+	 */
+	protected void saveRetryState() {
+		if (this.settings_helper == null) {
+			return;
+		}
+
+		HashMap<String, String> settings = new HashMap<>();
+
+		synchronized (retry_lock) {
+			settings.put("api_retry_num_failures", Integer.toString(num_failures));
+			settings.put("api_retry_next_attempt_time", Long.toString(next_attempt_time));
+		}
+
+		this.settings_helper.saveSettings(settings);
+	}
+
+	/**
+	 * Return if a retry is waiting for the backoff to pass
+	 *
+	 * @param key		Key of the retry (i.e. what is being retried)
+	 *
+	 * @return boolean
+	 */
+	public static boolean isRetryPending(String key) {
+		synchronized (retry_lock) {
+			ScheduledFuture<?> pending_retry = pending_retries.get(key);
+			return (pending_retry != null && !pending_retry.isDone());
+		}
+	}
+
+	/**
+	 * Run a retry once the backoff has passed. Only one retry per key waits at a time, so several
+	 * failures at once don't schedule several retries.
+	 *
+	 * @param key		Key of the retry (i.e. what is being retried)
+	 * @param task		Task to run
+	 *
+	 * @return void
+	 */
+	public static void scheduleRetry(final String key, final Runnable task) {
+		long delay;
+
+		synchronized (retry_lock) {
+			ScheduledFuture<?> pending_retry = pending_retries.get(key);
+			if (pending_retry != null && !pending_retry.isDone()) {
+				return;
+			}
+
+			if (retry_executor == null) {
+				retry_executor = Executors.newSingleThreadScheduledExecutor();
+			}
+
+			delay = Math.max(next_attempt_time - System.currentTimeMillis(), 0);
+
+			pending_retries.put(key, retry_executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (retry_lock) {
+						pending_retries.remove(key);
+					}
+
+					try {
+						task.run();
+
+					} catch (Exception error) {
+						error.printStackTrace();
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS));
+		}
+
+		Helpers.log("APIService.scheduleRetry: Retrying " + key + " in " + delay + " ms");
+	}
+
 	/**
 	 * Make request to server
 	 *
@@ -108,30 +580,59 @@ public class APIService {
 			data.put("token", this.access_token);
 		}
 
+		Helpers.log("Request Body: " + data.toString());
+
 		RequestBody body = RequestBody.create(JSON, data.toString());
-		Request request = new Request.Builder()
+		return this.makeRequest(method, url, body, null, callback);
+	}
+
+	/**
+	 * Make request to server with a body that has already been built
+	 *
+	 * @param method				Method to use when making request (GET, POST)
+	 * @param url					URL to make request to
+	 * @param body					Body of request
+	 * @param content_encoding		Encoding of body (i.e. "gzip"), or null if it isn't encoded
+	 * @param callback				Callback for the response
+	 *
+	 * @return Call
+	 */
+	public Call makeRequest(String method, String url, RequestBody body, String content_encoding, Callback callback) {
+		if (!url.startsWith("http") && !url.startsWith("file")) {
+			url = this.api_url + url;
+		}
+
+		Request.Builder request_builder = new Request.Builder()
 			.url(url)
-			.method(method, body)
-			.build();
+			.method(method, body);
 
 		if (!this.user_agent.equalsIgnoreCase("")) {
-			request = new Request.Builder()
-				.url(url)
-				.header("User-Agent", this.user_agent)
-				.method(method, body)
-				.build();
+			request_builder.header("User-Agent", this.user_agent);
+		}
+
+		if (content_encoding != null) {
+			request_builder.header("Content-Encoding", content_encoding);
 		}
 
+		Request request = request_builder.build();
+
 		Helpers.log("Request Url: " + request.url());
-		Helpers.log("Request Body: " + data.toString());
 
-		OkHttpClient client = new OkHttpClient();
-		Call call = client.newCall(request);
+		Call call = getClient().newCall(request);
 		call.enqueue(callback);
 
 		return call;
 	}
 
+	/**
+	 * Return access token
+	 *
+	 * @return String
+	 */
+	public String getAccessToken() {
+		return this.access_token;
+	}
+
 	/**
 	 * Set access token
 	 *
@@ -32,6 +32,71 @@ import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.SettingsDatabaseTa
 import edu.wisc.chess.plugins.chesslocationmonitoring.receivers.LocationUpdatesBroadcastReceiver;
 
 public class LocationService extends Service {
+	/**
+	 * Distance from the nearest geofence boundary (in meters) where each sampling tier ends. A
+	 * fix every interval at highway speed (about 25 meters per second) can't cover the distance
+	 * a tier starts at, so a boundary is never passed between two fixes.
+	 *
+	 * @var double[]
+	 */
+	protected static final double[] SAMPLING_TIER_DISTANCES = { 500, 2000, 10000, Double.MAX_VALUE };
+
+	/**
+	 * Location request priority of each sampling tier
+	 *
+	 * @var int[]
+	 */
+	protected static final int[] SAMPLING_TIER_PRIORITIES = {
+		LocationRequest.PRIORITY_HIGH_ACCURACY,
+		LocationRequest.PRIORITY_HIGH_ACCURACY,
+		LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY,
+		LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY
+	};
+
+	/**
+	 * Interval between locations (in milliseconds) of each sampling tier
+	 *
+	 * @var long[]
+	 */
+	protected static final long[] SAMPLING_TIER_INTERVALS = { 15*1000, 20*1000, 60*1000, 5*60*1000 };
+
+	/**
+	 * How far past a tier's end (as a multiple) the distance must be before sampling is relaxed,
+	 * so moving back and forth around a tier's end doesn't keep replacing the request
+	 *
+	 * @var double
+	 */
+	protected static final double SAMPLING_TIER_RELAX_FACTOR = 1.25;
+
+	/**
+	 * Sampling tier used when location updates are first requested (the most frequent)
+	 *
+	 * @var int
+	 */
+	protected static final int SAMPLING_TIER_NEAREST = 0;
+
+	/**
+	 * Sampling tier before it is loaded from the settings
+	 *
+	 * @var int
+	 */
+	protected static final int SAMPLING_TIER_NOT_LOADED = -1;
+
+	/**
+	 * Sampling tier when location updates aren't requested
+	 *
+	 * @var int
+	 */
+	protected static final int SAMPLING_TIER_NOT_REQUESTED = -2;
+
+	/**
+	 * Sampling tier of the current location request, shared by the process. The tier is also
+	 * saved in the "location_sampling_tier" setting, because location updates outlive the process.
+	 *
+	 * @var int
+	 */
+	protected static int sampling_tier = SAMPLING_TIER_NOT_LOADED;
+
 	/**
 	 * Description for notification channel (will be shown to user)
 	 *
@@ -81,6 +146,13 @@ public class LocationService extends Service {
 	 */
 	protected boolean location_updates_requested = false;
 
+	/**
+	 * Context location updates were requested in
+	 *
+	 * @var Context
+	 */
+	protected Context context = null;
+
 	/**
 	 * Create notification for Service that will allow us to collect location more frequently
 	 *
@@ -101,12 +173,33 @@ public class LocationService extends Service {
 		return builder.build();
 	}
 
+	/**
+	 * Return a location request for a sampling tier
+	 *
+	 * @param tier		Sampling tier to use
+	 *
+	 * @return LocationRequest
+	 */
+	protected static LocationRequest createLocationRequest(int tier) {
+		long interval = SAMPLING_TIER_INTERVALS[tier];
+
+		LocationRequest request = new LocationRequest();
+		request.setPriority(SAMPLING_TIER_PRIORITIES[tier]);
+		request.setInterval(interval); // Sets slowest interval to get locations
+		request.setFastestInterval(interval / 2); // Sets fastest interval to get locations if other applications are getting location
+		request.setExpirationDuration(7*1000); // Limits how long we look for locations
+		request.setSmallestDisplacement(0); // Requires users to move at least n meters between location updates
+		request.setMaxWaitTime(60*1000); // Sets the max amount of time to wait for a new location: https://developers.google.com/android/reference/com/google/android/gms/location/LocationRequest#public-locationrequest-setmaxwaittime-long-millis
+
+		return request;
+	}
+
 	/**
 	 * Return a pending intent for the location request
 	 *
 	 * @return PendingIntent
 	 */
-	private PendingIntent getLocationRequestPendingIntent(Context context) {
+	protected static PendingIntent getLocationRequestPendingIntent(Context context) {
 		Intent intent = new Intent(context, LocationUpdatesBroadcastReceiver.class);
 		intent.setAction(LocationUpdatesBroadcastReceiver.ACTION_PROCESS_UPDATES);
 
@@ -189,24 +282,20 @@ public class LocationService extends Service {
 		if (!this.location_updates_requested) {
 			Helpers.log("LocationService.requestLocationUpdates: Requesting location updates");
 
-			LocationRequest request = new LocationRequest();
-			request.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-			request.setInterval(15*1000); // Sets slowest interval to get locations
-			request.setFastestInterval(7*1000); // Sets fastest interval to get locations if other applications are getting location
-			request.setExpirationDuration(7*1000); // Limits how long we look for locations
-			request.setSmallestDisplacement(0); // Requires users to move at least n meters between location updates
-			request.setMaxWaitTime(60*1000); // Sets the max amount of time to wait for a new location: https://developers.google.com/android/reference/com/google/android/gms/location/LocationRequest#public-locationrequest-setmaxwaittime-long-millis
+			LocationRequest request = createLocationRequest(SAMPLING_TIER_NEAREST);
 
 			try {
 				this.handler_thread.start();
-				this.client.requestLocationUpdates(request, this.getLocationRequestPendingIntent(context));
+				this.client.requestLocationUpdates(request, getLocationRequestPendingIntent(context));
 
 			} catch (Exception error) {
 				error.printStackTrace();
 			}
 		}
 
+		this.context = context;
 		this.location_updates_requested = true;
+		saveSamplingTier(context, SAMPLING_TIER_NEAREST);
 		Helpers.log("LocationService.requestLocationUpdates: Requested Location Updates");
 	}
 
@@ -228,6 +317,107 @@ public class LocationService extends Service {
 
 		this.client.removeLocationUpdates(location_callback);
 		this.location_updates_requested = false;
+
+		// The tier is shared by the process, so record the stop even if another instance requested updates
+		saveSamplingTier((this.context != null) ? this.context : getApplicationContext(), SAMPLING_TIER_NOT_REQUESTED);
+	}
+
+	/**
+	 * Return the sampling tier for a distance from the nearest geofence boundary
+	 *
+	 * @param distance		Distance to the nearest geofence boundary (in meters)
+	 *
+	 * @return int
+	 */
+	protected static int getSamplingTier(double distance) {
+		int tier = SAMPLING_TIER_NEAREST;
+		while (tier < SAMPLING_TIER_DISTANCES.length - 1 && distance >= SAMPLING_TIER_DISTANCES[tier]) {
+			tier++;
+		}
+
+		return tier;
+	}
+
+	/**
+	 * Save the sampling tier of the current location request
+	 *
+	 * @param context		Context to use
+	 * @param tier			Sampling tier to save
+	 *
+	 * @return void
+	 */
+	protected static synchronized void saveSamplingTier(Context context, int tier) {
+		if (tier == sampling_tier) {
+			return;
+		}
+
+		sampling_tier = tier;
+
+		SettingsDatabaseTableHelpers settings_helper = new SettingsDatabaseTableHelpers(context);
+		settings_helper.insertSetting("location_sampling_tier", (tier >= 0) ? Integer.toString(tier) : "");
+	}
+
+	/**
+	 * Forget the sampling tier, so it is read from the "location_sampling_tier" setting again.
+	 * Called when the settings are deleted.
+	 *
+	 * @return void
+	 */
+	public static synchronized void invalidateSamplingTier() {
+		sampling_tier = SAMPLING_TIER_NOT_LOADED;
+	}
+
+	/**
+	 * Stretch or tighten location sampling for the distance to the nearest geofence boundary.
+	 * Far from every geofence locations are requested less often and with less power, and near a
+	 * boundary they are requested often and accurately. The location request is only replaced
+	 * when the tier changes, and only while location updates are requested.
+	 *
+	 * @param context		Context to use
+	 * @param distance		Distance to the nearest geofence boundary (in meters)
+	 *
+	 * @return void
+	 */
+	@SuppressLint("MissingPermission")
+	public static synchronized void updateSamplingForDistance(Context context, double distance) {
+		if (sampling_tier == SAMPLING_TIER_NOT_LOADED) {
+			SettingsDatabaseTableHelpers settings_helper = new SettingsDatabaseTableHelpers(context);
+			String value = settings_helper.getSettingByKey("location_sampling_tier");
+
+			try {
+				sampling_tier = value.isEmpty() ? SAMPLING_TIER_NOT_REQUESTED : Math.min(Integer.parseInt(value), SAMPLING_TIER_DISTANCES.length - 1);
+
+			} catch (NumberFormatException error) {
+				sampling_tier = SAMPLING_TIER_NOT_REQUESTED;
+			}
+		}
+
+		if (sampling_tier < 0) {
+			return;
+		}
+
+		int tier = getSamplingTier(distance);
+
+		// Tighten right away, but only relax once the distance is well past the tier's end
+		if (tier > sampling_tier) {
+			tier = Math.max(sampling_tier, getSamplingTier(distance / SAMPLING_TIER_RELAX_FACTOR));
+		}
+
+		if (tier == sampling_tier) {
+			return;
+		}
+
+		Helpers.log("LocationService.updateSamplingForDistance: distance = " + Double.toString(distance) + ", tier = " + Integer.toString(sampling_tier) + " -> " + Integer.toString(tier));
+
+		try {
+			// The same pending intent replaces the current request instead of adding another
+			FusedLocationProviderClient client = LocationServices.getFusedLocationProviderClient(context);
+			client.requestLocationUpdates(createLocationRequest(tier), getLocationRequestPendingIntent(context));
+			saveSamplingTier(context, tier);
+
+		} catch (Exception error) {
+			error.printStackTrace();
+		}
 	}
 
 	/**
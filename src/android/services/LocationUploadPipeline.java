@@ -0,0 +1,534 @@
+/**
+ * Pipeline for uploading saved locations
+ *
+ * Up to MAX_BATCHES_IN_FLIGHT batches are sent at once, so catching up after being offline is
+ * limited by bandwidth rather than by one round trip per batch. Each batch claims a range of
+ * ids, and the next batch starts after the newest claimed id, so no location is in two
+ * requests at once. Batches that failed with a network or server error keep their range and
+ * are sent again once APIService's backoff has passed, or on the next drain. Batches the server
+ * rejected are released and skipped for the rest of the process, so one bad batch can't block
+ * every later upload. Their locations stay saved and are sent again after the next restart.
+ *
+ * The pipeline is shared by the process, since controllers are created for each delivery of
+ * locations and must not claim the same ranges.
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.services;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.GPSDatabaseTableHelpers;
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.Helpers;
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.UploadBatchPolicy;
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.LocationUploadBatch;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+public class LocationUploadPipeline {
+	/**
+	 * Listener for when every claimed batch has been uploaded
+	 */
+	public interface DrainListener {
+		/**
+		 * Called when the last batch in flight finishes and nothing else is ready to send
+		 *
+		 * @param num_remaining		Number of locations still saved (i.e. partial batches)
+		 *
+		 * @return void
+		 */
+		void onDrainComplete(long num_remaining);
+	}
+
+	/**
+	 * Maximum number of batches sent at once
+	 *
+	 * @var int
+	 */
+	public static final int MAX_BATCHES_IN_FLIGHT = 3;
+
+	/**
+	 * Number of server errors after which a batch is rejected instead of retried, so a batch
+	 * the server keeps failing on can't hold the only slot on a metered network. Network failures
+	 * aren't counted, since they say nothing about the batch.
+	 *
+	 * @var int
+	 */
+	protected static final int MAX_FAILED_ATTEMPTS = 5;
+
+	/**
+	 * Maximum number of rejected batches remembered (the oldest is forgotten, and sent again)
+	 *
+	 * @var int
+	 */
+	protected static final int MAX_REJECTED_BATCHES = 100;
+
+	/**
+	 * URL to save GPS coordinates to
+	 *
+	 * @var String
+	 */
+	protected static final String GPS_COORDINATES_API_URL = "gps-coordinates/save-coordinates";
+
+	/**
+	 * Instance shared by the process
+	 *
+	 * @var LocationUploadPipeline
+	 */
+	protected static LocationUploadPipeline instance = null;
+
+	/**
+	 * Context to read the network and power state with
+	 *
+	 * @var Context
+	 */
+	protected Context context;
+
+	/**
+	 * GPS database helpers to read and delete locations with
+	 *
+	 * @var GPSDatabaseTableHelpers
+	 */
+	protected GPSDatabaseTableHelpers gps_database_helpers;
+
+	/**
+	 * Policy deciding when to send and how many locations to send per batch
+	 *
+	 * @var UploadBatchPolicy
+	 */
+	protected UploadBatchPolicy upload_batch_policy;
+
+	/**
+	 * Batches that failed, or were claimed but not let through yet, and will be sent again (oldest first)
+	 *
+	 * @var ArrayDeque<LocationUploadBatch>
+	 */
+	protected ArrayDeque<LocationUploadBatch> retry_batches;
+
+	/**
+	 * Batches the server rejected, whose ranges are skipped when claiming (oldest first)
+	 *
+	 * @var ArrayDeque<LocationUploadBatch>
+	 */
+	protected ArrayDeque<LocationUploadBatch> rejected_batches;
+
+	/**
+	 * Listeners for when the pipeline drains
+	 *
+	 * @var ArrayList<DrainListener>
+	 */
+	protected ArrayList<DrainListener> drain_listeners;
+
+	/**
+	 * Identifier of the newest location claimed by a batch
+	 *
+	 * @var long
+	 */
+	protected long claimed_up_to_id = 0;
+
+	/**
+	 * Number of locations in batches that are in flight or waiting to be retried
+	 *
+	 * @var long
+	 */
+	protected long num_claimed_locations = 0;
+
+	/**
+	 * Number of batches in flight
+	 *
+	 * @var int
+	 */
+	protected int num_in_flight = 0;
+
+	/**
+	 * Constructor for the object
+	 *
+	 * @param context		Context to use
+	 *
+	 * @return void
+	 */
+	protected LocationUploadPipeline(Context context) {
+		this.context = context;
+		this.gps_database_helpers = new GPSDatabaseTableHelpers(context);
+		this.upload_batch_policy = UploadBatchPolicy.getInstance();
+		this.retry_batches = new ArrayDeque<>();
+		this.rejected_batches = new ArrayDeque<>();
+		this.drain_listeners = new ArrayList<>();
+	}
+
+	/**
+	 * Return the instance shared by the process
+	 *
+	 * @param context		Context to use
+	 *
+	 * @return LocationUploadPipeline
+	 */
+	public static synchronized LocationUploadPipeline getInstance(Context context) {
+		if (instance == null) {
+			instance = new LocationUploadPipeline(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Add a listener for when the pipeline drains
+	 *
+	 * @param listener		Listener to add
+	 *
+	 * @return void
+	 */
+	public synchronized void addDrainListener(DrainListener listener) {
+		if (!this.drain_listeners.contains(listener)) {
+			this.drain_listeners.add(listener);
+		}
+	}
+
+	/**
+	 * Remove a listener for when the pipeline drains
+	 *
+	 * @param listener		Listener to remove
+	 *
+	 * @return void
+	 */
+	public synchronized void removeDrainListener(DrainListener listener) {
+		this.drain_listeners.remove(listener);
+	}
+
+	/**
+	 * Return the number of batches in flight
+	 *
+	 * @return int
+	 */
+	public synchronized int getNumInFlight() {
+		return this.num_in_flight;
+	}
+
+	/**
+	 * Return if the pipeline is full, i.e. another batch would have to wait for one in flight
+	 *
+	 * @return boolean
+	 */
+	public synchronized boolean isBackpressured() {
+		return this.num_in_flight >= MAX_BATCHES_IN_FLIGHT;
+	}
+
+	/**
+	 * Send batches until the pipeline is full or nothing else is ready to send. Batches waiting
+	 * to be retried are sent first. Unless a bulk drain is allowed (see UploadBatchPolicy), only
+	 * one batch is in flight at a time.
+	 *
+	 * @param api_service		API service to send with
+	 * @param format			Format to write batches in (see LocationUploadRequestBody)
+	 * @param force_send		Indicates if a partial batch should be sent
+	 *
+	 * @return void
+	 */
+	public void drain(APIService api_service, String format, boolean force_send) {
+		this.upload_batch_policy.updateConditions(this.context);
+		int max_batches_in_flight = (this.upload_batch_policy.isBulkDrainAllowed()) ? MAX_BATCHES_IN_FLIGHT : 1;
+
+		while (true) {
+			LocationUploadBatch batch;
+
+			synchronized (this) {
+				if (this.num_in_flight >= max_batches_in_flight) {
+					Helpers.log("LocationUploadPipeline.drain: " + this.num_in_flight + " batches in flight, waiting");
+					return;
+				}
+
+				// Backing off, or the circuit is open, so don't query or serialize anything yet
+				if (!api_service.isRequestAllowed()) {
+					Helpers.log("LocationUploadPipeline.drain: Requests are backing off, waiting");
+					return;
+				}
+
+				batch = this.retry_batches.peek();
+
+				if (batch != null) {
+					// A failed batch was already due, so it only waits for a network
+					if (!this.upload_batch_policy.shouldSend(batch.getNumLocations(), true)) {
+						return;
+					}
+
+					this.retry_batches.poll();
+
+				} else {
+					long num_unclaimed = this.gps_database_helpers.getLocationCount() - this.num_claimed_locations;
+					if (!this.upload_batch_policy.shouldSend(num_unclaimed, force_send)) {
+						return;
+					}
+
+					batch = this.claimNextBatch(this.upload_batch_policy.getBatchSize());
+					if (batch == null) {
+						return;
+					}
+
+					this.claimed_up_to_id = batch.getLastId();
+					this.num_claimed_locations += batch.getNumLocations();
+				}
+
+				// Another request may have started testing an open circuit since the check above
+				if (!api_service.tryStartRequest()) {
+					this.retry_batches.addFirst(batch);
+					Helpers.log("LocationUploadPipeline.drain: Requests are backing off, waiting");
+					return;
+				}
+
+				this.num_in_flight++;
+				this.upload_batch_policy.onSendStarted();
+			}
+
+			Helpers.log("LocationUploadPipeline.drain: Sending " + batch.getNumLocations() + " locations after " + batch.getAfterId() + " up to " + batch.getLastId());
+
+			LocationUploadRequestBody body = new LocationUploadRequestBody(this.gps_database_helpers, api_service.getAccessToken(), batch, format);
+			api_service.makeRequest("post", GPS_COORDINATES_API_URL, body, LocationUploadRequestBody.CONTENT_ENCODING, this.createCallback(api_service, format, batch));
+
+			// Only the first batch can be partial
+			force_send = false;
+		}
+	}
+
+	/**
+	 * Create callback for a batch
+	 *
+	 * @param api_service		API service the batch was sent with
+	 * @param format			Format the batch was written in
+	 * @param batch				Batch that was sent
+	 *
+	 * @return Callback
+	 */
+	protected Callback createCallback(final APIService api_service, final String format, final LocationUploadBatch batch) {
+		final long send_time = System.currentTimeMillis();
+
+		return (new Callback() {
+			@Override
+			public void onFailure(Call call, IOException error) {
+				// Something went wrong
+				error.printStackTrace();
+
+				handleBatchFailed(api_service, format, batch, System.currentTimeMillis() - send_time, true, false);
+			}
+
+			@Override
+			public void onResponse(Call call, Response response) throws IOException {
+				String response_string;
+
+				try {
+					response_string = response.body().string();
+
+				} catch (IOException error) {
+					// OkHttp doesn't call onFailure after onResponse, so release the batch here
+					handleBatchFailed(api_service, format, batch, System.currentTimeMillis() - send_time, true, false);
+					throw error;
+				}
+
+				Helpers.log("LocationUploadPipeline.createCallback: onResponse callback: HTTP Status: " + response.code());
+				Helpers.log("LocationUploadPipeline.createCallback: onResponse callback: Response Body: " + response_string);
+
+				long duration = System.currentTimeMillis() - send_time;
+
+				if (!response.isSuccessful()) {
+					handleBatchFailed(api_service, format, batch, duration, APIService.isRetryableStatus(response.code()), true);
+					return;
+				}
+
+				try {
+					JSONObject response_data = new JSONObject(response_string);
+					JSONArray ids_saved = response_data.getJSONArray("ids_saved");
+					gps_database_helpers.deleteLocationsById(ids_saved);
+
+				} catch (JSONException error) {
+					error.printStackTrace();
+					handleBatchFailed(api_service, format, batch, duration, false, true);
+					return;
+				}
+
+				handleBatchSaved(api_service, format, batch, duration);
+			}
+		});
+	}
+
+	/**
+	 * Handle a failed batch. If the failure is worth retrying, the batch is queued to be sent
+	 * again, and APIService backs off and drains again once the backoff has passed. Otherwise the
+	 * server rejected the batch, so it is released and skipped instead of being sent on every
+	 * drain. A batch the server has failed on MAX_FAILED_ATTEMPTS times is rejected too.
+	 *
+	 * @param api_service		API service the batch was sent with
+	 * @param format			Format the batch was written in
+	 * @param batch				Batch that failed
+	 * @param duration			Time taken for the request (in milliseconds)
+	 * @param is_retryable		Indicates if the failure is worth retrying (i.e. network or server errors)
+	 * @param has_response		Indicates if the server responded (i.e. it wasn't a network failure)
+	 *
+	 * @return void
+	 */
+	protected void handleBatchFailed(final APIService api_service, final String format, LocationUploadBatch batch, long duration, boolean is_retryable, boolean has_response) {
+		synchronized (this) {
+			this.num_in_flight--;
+
+			if (is_retryable && has_response && batch.recordFailedAttempt() >= MAX_FAILED_ATTEMPTS) {
+				Helpers.log("LocationUploadPipeline.handleBatchFailed: Server failed on the batch " + batch.getNumFailedAttempts() + " times");
+				is_retryable = false;
+			}
+
+			if (is_retryable) {
+				this.retry_batches.add(batch);
+
+			} else {
+				this.rejectBatch(batch);
+			}
+		}
+
+		this.upload_batch_policy.onSendFinished(false, duration, this.gps_database_helpers.getLocationCount());
+
+		if (!is_retryable) {
+			this.completeDrainIfIdle();
+			return;
+		}
+
+		api_service.recordFailure();
+		APIService.scheduleRetry("locations", new Runnable() {
+			@Override
+			public void run() {
+				drain(api_service, format, false);
+			}
+		});
+	}
+
+	/**
+	 * Release a batch the server won't accept and remember its range, so it isn't claimed again
+	 * by this process. Must be called while synchronized on the pipeline.
+	 *
+	 * @param batch				Batch to reject
+	 *
+	 * @return void
+	 */
+	protected void rejectBatch(LocationUploadBatch batch) {
+		this.num_claimed_locations = Math.max(this.num_claimed_locations - batch.getNumLocations(), 0);
+
+		if (this.rejected_batches.size() >= MAX_REJECTED_BATCHES) {
+			this.rejected_batches.poll();
+		}
+
+		this.rejected_batches.add(batch);
+
+		Helpers.log("LocationUploadPipeline.rejectBatch: Skipping " + batch.getNumLocations() + " locations after " + batch.getAfterId() + " up to " + batch.getLastId() + " until the next restart");
+	}
+
+	/**
+	 * Claim the next batch after the claimed range, skipping the ranges of rejected batches.
+	 * Must be called while synchronized on the pipeline.
+	 *
+	 * @NOTE A rejected batch covers the ids after its after id up to its last id. While the
+	 * 		oldest unclaimed location falls in a rejected range, the claim moves past that range.
+	 * 		The batch then stops before the next rejected range, so it can't take rejected
+	 * 		locations with it (e.g. after the claimed range is reset to 0 when the pipeline is idle).
+	 *
+	 * @param n					Maximum number of locations in the batch
+	 *
+	 * @return LocationUploadBatch		Batch, or null if there are no locations to claim
+	 */
+	protected LocationUploadBatch claimNextBatch(int n) {
+		long after_id = this.claimed_up_to_id;
+		long before_id;
+
+		while (true) {
+			long first_id = this.gps_database_helpers.getFirstLocationIdAfterId(after_id);
+			if (first_id == 0) {
+				return null;
+			}
+
+			LocationUploadBatch skipped_batch = null;
+			before_id = 0;
+
+			for (LocationUploadBatch rejected_batch : this.rejected_batches) {
+				if (first_id > rejected_batch.getAfterId() && first_id <= rejected_batch.getLastId()) {
+					skipped_batch = rejected_batch;
+					break;
+				}
+
+				if (first_id <= rejected_batch.getAfterId() && (before_id == 0 || rejected_batch.getAfterId() + 1 < before_id)) {
+					before_id = rejected_batch.getAfterId() + 1;
+				}
+			}
+
+			if (skipped_batch == null) {
+				break;
+			}
+
+			after_id = skipped_batch.getLastId();
+		}
+
+		this.claimed_up_to_id = after_id;
+
+		return this.gps_database_helpers.getNextUploadBatch(after_id, before_id, n);
+	}
+
+	/**
+	 * Release a saved batch, send whatever is ready next, and signal the drain listeners if the
+	 * pipeline is now empty
+	 *
+	 * @param api_service		API service the batch was sent with
+	 * @param format			Format the batch was written in
+	 * @param batch				Batch that was saved
+	 * @param duration			Time taken for the request (in milliseconds)
+	 *
+	 * @return void
+	 */
+	protected void handleBatchSaved(APIService api_service, String format, LocationUploadBatch batch, long duration) {
+		synchronized (this) {
+			this.num_in_flight--;
+			this.num_claimed_locations = Math.max(this.num_claimed_locations - batch.getNumLocations(), 0);
+		}
+
+		long num_remaining = this.gps_database_helpers.getLocationCount();
+		this.upload_batch_policy.onSendFinished(true, duration, num_remaining);
+		api_service.recordSuccess();
+
+		// On a metered network the rest of a backlog waits for the next fix or alarm
+		if (this.upload_batch_policy.isBulkDrainAllowed()) {
+			this.drain(api_service, format, false);
+		}
+
+		this.completeDrainIfIdle();
+	}
+
+	/**
+	 * Signal the drain listeners if nothing is in flight or waiting to be retried
+	 *
+	 * @return void
+	 */
+	protected void completeDrainIfIdle() {
+		ArrayList<DrainListener> listeners;
+		synchronized (this) {
+			if (this.num_in_flight > 0 || !this.retry_batches.isEmpty()) {
+				return;
+			}
+
+			// Anything left below the claimed range was not acknowledged, so it is claimed again
+			// (except for rejected batches, which are skipped)
+			this.claimed_up_to_id = 0;
+			this.num_claimed_locations = 0;
+
+			listeners = new ArrayList<>(this.drain_listeners);
+		}
+
+		long num_remaining = this.gps_database_helpers.getLocationCount();
+		Helpers.log("LocationUploadPipeline.completeDrainIfIdle: Drain complete, " + num_remaining + " locations remaining");
+
+		for (DrainListener listener : listeners) {
+			listener.onDrainComplete(num_remaining);
+		}
+	}
+}
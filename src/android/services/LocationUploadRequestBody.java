@@ -0,0 +1,233 @@
+/**
+ * Request body for uploading a batch of locations
+ *
+ * Locations are read from the database cursor and written straight into a gzip stream, so the
+ * batch is never held in memory as JSON objects or as one string. The access token the
+ * locations were saved with is sent once for the batch rather than with every location. The
+ * batch is written as JSON, or in the binary format from LocationBatchCodec if requested.
+ *
+ * @copyright Center for Health Enhancement Systems Studies
+ */
+package edu.wisc.chess.plugins.chesslocationmonitoring.services;
+
+import android.database.Cursor;
+import android.util.JsonWriter;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.GPSDatabaseTableHelpers;
+import edu.wisc.chess.plugins.chesslocationmonitoring.helpers.LocationBatchCodec;
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.GPSDatabaseRowObject;
+import edu.wisc.chess.plugins.chesslocationmonitoring.models.LocationUploadBatch;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+public class LocationUploadRequestBody extends RequestBody {
+	/**
+	 * Content encoding of the body
+	 *
+	 * @var String
+	 */
+	public static final String CONTENT_ENCODING = "gzip";
+
+	/**
+	 * Format for a JSON batch
+	 *
+	 * @var String
+	 */
+	public static final String FORMAT_JSON = "json";
+
+	/**
+	 * Format for a binary batch (see LocationBatchCodec)
+	 *
+	 * @var String
+	 */
+	public static final String FORMAT_BINARY = "binary";
+
+	/**
+	 * JSON MediaType
+	 *
+	 * @var MediaType
+	 */
+	protected static MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+	/**
+	 * Binary batch MediaType
+	 *
+	 * @var MediaType
+	 */
+	protected static MediaType BINARY = MediaType.parse(LocationBatchCodec.CONTENT_TYPE);
+
+	/**
+	 * GPS database helpers to read locations from
+	 *
+	 * @var GPSDatabaseTableHelpers
+	 */
+	protected GPSDatabaseTableHelpers gps_database_helpers;
+
+	/**
+	 * Token for passing data to the server
+	 *
+	 * @var String
+	 */
+	protected String token;
+
+	/**
+	 * Range of locations to send
+	 *
+	 * @var LocationUploadBatch
+	 */
+	protected LocationUploadBatch batch;
+
+	/**
+	 * Format to write the batch in (FORMAT_JSON or FORMAT_BINARY)
+	 *
+	 * @var String
+	 */
+	protected String format;
+
+	/**
+	 * Number of locations written the last time the body was written
+	 *
+	 * @var int
+	 */
+	protected int num_locations = 0;
+
+	/**
+	 * Constructor for the object
+	 *
+	 * @param gps_database_helpers		GPS database helpers to read locations from
+	 * @param token						Token for passing data to the server
+	 * @param batch						Range of locations to send
+	 * @param format					Format to write the batch in (FORMAT_JSON or FORMAT_BINARY)
+	 *
+	 * @return void
+	 */
+	public LocationUploadRequestBody(GPSDatabaseTableHelpers gps_database_helpers, String token, LocationUploadBatch batch, String format) {
+		this.gps_database_helpers = gps_database_helpers;
+		this.token = token;
+		this.batch = batch;
+		this.format = FORMAT_BINARY.equalsIgnoreCase(format) ? FORMAT_BINARY : FORMAT_JSON;
+	}
+
+	/**
+	 * Return type of content
+	 *
+	 * @return MediaType
+	 */
+	@Override
+	public MediaType contentType() {
+		return (FORMAT_BINARY.equals(this.format)) ? BINARY : JSON;
+	}
+
+	/**
+	 * Return number of locations written the last time the body was written
+	 *
+	 * @return int
+	 */
+	public int getNumLocations() {
+		return this.num_locations;
+	}
+
+	/**
+	 * Write the body. The locations are queried by the batch's id range each time, so a retried
+	 * request sends the same locations.
+	 *
+	 * @param sink		Sink to write to
+	 *
+	 * @return void
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void writeTo(BufferedSink sink) throws IOException {
+		BufferedSink gzip_sink = Okio.buffer(new GzipSink(sink));
+		Cursor cursor = this.gps_database_helpers.queryLocationsForUpload(this.batch);
+
+		try {
+			if (FORMAT_BINARY.equals(this.format)) {
+				this.num_locations = this.writeBinary(gzip_sink, cursor);
+
+			} else {
+				this.num_locations = this.writeJSON(gzip_sink, cursor);
+			}
+
+		} catch (JSONException error) {
+			throw new IOException(error);
+
+		} finally {
+			cursor.close();
+		}
+
+		gzip_sink.close();
+	}
+
+	/**
+	 * Write the batch in the binary format
+	 *
+	 * @param sink			Sink to write to
+	 * @param cursor		Cursor over the locations
+	 *
+	 * @return int			Number of locations written
+	 *
+	 * @throws IOException
+	 */
+	protected int writeBinary(BufferedSink sink, Cursor cursor) throws IOException {
+		LocationBatchCodec codec = new LocationBatchCodec(sink.outputStream());
+		GPSDatabaseRowObject location = new GPSDatabaseRowObject();
+		int num_locations = 0;
+
+		codec.writeHeader(this.token, this.batch.getAccessToken());
+
+		while (cursor.moveToNext()) {
+			location.buildFromCursor(cursor);
+			codec.writeLocation(location);
+			num_locations++;
+		}
+
+		codec.writeEnd();
+
+		return num_locations;
+	}
+
+	/**
+	 * Write the batch as JSON
+	 *
+	 * @param sink			Sink to write to
+	 * @param cursor		Cursor over the locations
+	 *
+	 * @return int			Number of locations written
+	 *
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	protected int writeJSON(BufferedSink sink, Cursor cursor) throws IOException, JSONException {
+		JsonWriter writer = new JsonWriter(new OutputStreamWriter(sink.outputStream(), "UTF-8"));
+		GPSDatabaseRowObject location = new GPSDatabaseRowObject();
+		int num_locations = 0;
+
+		writer.beginObject();
+		writer.name("token").value(this.token);
+		writer.name("access_token").value(this.batch.getAccessToken());
+		writer.name("coordinates");
+		writer.beginArray();
+
+		while (cursor.moveToNext()) {
+			location.buildFromCursor(cursor);
+			location.writeAsJSON(writer);
+			num_locations++;
+		}
+
+		writer.endArray();
+		writer.endObject();
+		writer.flush();
+
+		return num_locations;
+	}
+}